@@ -0,0 +1,65 @@
+package org.samo_lego.chestrefill.benchmark;
+
+import net.minecraft.core.registries.Registries;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.world.level.storage.loot.LootTable;
+import org.openjdk.jmh.annotations.*;
+import org.samo_lego.chestrefill.storage.LootConfig;
+import org.samo_lego.chestrefill.storage.RefillPolicies;
+import org.samo_lego.chestrefill.storage.RefillPolicy;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compiling {@link LootConfig} and looking up policies of loot tables, for different <code>lootModifierMap</code> sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PolicyLookupBenchmark {
+    private static final int KEYS = 1024;
+
+    @Param({"10", "1000", "10000"})
+    public int entries;
+
+    private LootConfig config;
+    private RefillPolicies.Snapshot snapshot;
+    private ResourceKey<LootTable>[] hits;
+    private ResourceKey<LootTable>[] misses;
+    private int index;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        this.config = new LootConfig();
+        this.config.lootModifierMap = new HashMap<>();
+        for (int i = 0; i < this.entries; ++i) {
+            this.config.lootModifierMap.put("bench:chests/table_" + i, new LootConfig.DefaultProperties());
+        }
+        this.snapshot = RefillPolicies.build(this.config);
+
+        this.hits = new ResourceKey[KEYS];
+        this.misses = new ResourceKey[KEYS];
+        for (int i = 0; i < KEYS; ++i) {
+            this.hits[i] = ResourceKey.create(Registries.LOOT_TABLE, ResourceLocation.fromNamespaceAndPath("bench", "chests/table_" + (i % this.entries)));
+            this.misses[i] = ResourceKey.create(Registries.LOOT_TABLE, ResourceLocation.fromNamespaceAndPath("bench", "chests/missing_" + i));
+        }
+    }
+
+    @Benchmark
+    public RefillPolicy lookupHit() {
+        return this.snapshot.get(this.hits[this.index++ & (KEYS - 1)]);
+    }
+
+    @Benchmark
+    public RefillPolicy lookupMiss() {
+        return this.snapshot.get(this.misses[this.index++ & (KEYS - 1)]);
+    }
+
+    @Benchmark
+    public RefillPolicies.Snapshot compile() {
+        return RefillPolicies.build(this.config);
+    }
+}
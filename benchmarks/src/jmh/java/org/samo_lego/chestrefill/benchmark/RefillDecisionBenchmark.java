@@ -0,0 +1,59 @@
+package org.samo_lego.chestrefill.benchmark;
+
+import net.minecraft.core.registries.Registries;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.resources.ResourceLocation;
+import org.openjdk.jmh.annotations.*;
+import org.samo_lego.chestrefill.refill.RefillGate;
+import org.samo_lego.chestrefill.storage.RefillState;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The refill decision of {@link RefillGate#findRejecting}, as run by containers.
+ * Inventory and permission lookups need a running server, so they're replaced with constants.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RefillDecisionBenchmark {
+    @Param({"0", "10", "1000"})
+    public int looters;
+
+    private RefillState state;
+    private UUID looter;
+    private UUID stranger;
+    private long now;
+
+    @Setup
+    public void setup() {
+        this.state = new RefillState();
+        this.state.setSavedLootTable(ResourceKey.create(Registries.LOOT_TABLE, ResourceLocation.withDefaultNamespace("chests/simple_dungeon")), 42L);
+
+        Random random = new Random(this.looters);
+        this.looter = new UUID(random.nextLong(), random.nextLong());
+        this.stranger = new UUID(random.nextLong(), random.nextLong());
+        for (int i = 0; i < this.looters; ++i) {
+            this.state.markLooted(i == 0 ? this.looter : new UUID(random.nextLong(), random.nextLong()), 0L);
+        }
+
+        // Cooldown has passed
+        this.now = Long.MAX_VALUE / 2;
+    }
+
+    @Benchmark
+    public RefillGate decideForLooter() {
+        return this.decide(this.looter);
+    }
+
+    @Benchmark
+    public RefillGate decideForStranger() {
+        return this.decide(this.stranger);
+    }
+
+    private RefillGate decide(UUID player) {
+        return RefillGate.findRejecting(this.state, player, this.now, () -> true, () -> false);
+    }
+}
@@ -0,0 +1,129 @@
+package org.samo_lego.chestrefill.benchmark;
+
+import net.minecraft.core.registries.Registries;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.NbtAccounter;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.StringTag;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.resources.ResourceLocation;
+import org.openjdk.jmh.annotations.*;
+import org.samo_lego.chestrefill.storage.RefillState;
+
+import java.io.*;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading and saving of the <code>ChestRefill</code> tag, as done on every chunk load and save.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RefillStateCodecBenchmark {
+    @Param({"0", "10", "1000"})
+    public int looters;
+
+    private RefillState state;
+    private CompoundTag refillTag;
+    private CompoundTag legacyRefillTag;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws IOException {
+        this.state = new RefillState();
+        this.state.setSavedLootTable(ResourceKey.create(Registries.LOOT_TABLE, ResourceLocation.withDefaultNamespace("chests/simple_dungeon")), 42L);
+
+        Random random = new Random(this.looters);
+        ListTag legacyUUIDs = new ListTag();
+        for (int i = 0; i < this.looters; ++i) {
+            UUID uuid = new UUID(random.nextLong(), random.nextLong());
+            this.state.markLooted(uuid, i);
+            legacyUUIDs.add(StringTag.valueOf(uuid.toString()));
+        }
+
+        CompoundTag parent = new CompoundTag();
+        this.state.save(parent);
+        this.refillTag = parent.getCompound(RefillState.TAG_NAME);
+
+        this.legacyRefillTag = this.refillTag.copy();
+        this.legacyRefillTag.remove("Looters");
+        this.legacyRefillTag.put("LootedUUIDs", legacyUUIDs);
+
+        this.encoded = write(parent);
+    }
+
+    /**
+     * Save of an unchanged state, which reuses the tag of the previous save.
+     */
+    @Benchmark
+    public CompoundTag save() {
+        CompoundTag parent = new CompoundTag();
+        this.state.save(parent);
+        return parent;
+    }
+
+    /**
+     * Save of a state that changed since the previous save, which encodes it again.
+     */
+    @Benchmark
+    public CompoundTag saveChanged() {
+        this.state.resetRefillCounter();
+        CompoundTag parent = new CompoundTag();
+        this.state.save(parent);
+        return parent;
+    }
+
+    @Benchmark
+    public RefillState load() {
+        RefillState loaded = new RefillState();
+        loaded.load(this.refillTag);
+        return loaded;
+    }
+
+    /**
+     * Load and save of a container that was never opened in between.
+     */
+    @Benchmark
+    public CompoundTag loadLazilyAndSave() {
+        RefillState loaded = new RefillState();
+        loaded.loadLazily(this.refillTag);
+        CompoundTag parent = new CompoundTag();
+        loaded.save(parent);
+        return parent;
+    }
+
+    @Benchmark
+    public RefillState loadLegacy() {
+        RefillState loaded = new RefillState();
+        loaded.load(this.legacyRefillTag);
+        return loaded;
+    }
+
+    /**
+     * Full round-trip through the binary NBT format, like a chunk save followed by a chunk load.
+     */
+    @Benchmark
+    public RefillState roundTrip() throws IOException {
+        CompoundTag parent = NbtIo.read(
+                new DataInputStream(new ByteArrayInputStream(write(this.save()))),
+                NbtAccounter.unlimitedHeap()
+        );
+        RefillState loaded = new RefillState();
+        loaded.load(parent.getCompound(RefillState.TAG_NAME));
+        return loaded;
+    }
+
+    @Benchmark
+    public CompoundTag decode() throws IOException {
+        return NbtIo.read(new DataInputStream(new ByteArrayInputStream(this.encoded)), NbtAccounter.unlimitedHeap());
+    }
+
+    private static byte[] write(CompoundTag tag) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        NbtIo.write(tag, new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+}
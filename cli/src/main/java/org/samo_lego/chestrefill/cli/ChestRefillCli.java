@@ -0,0 +1,160 @@
+package org.samo_lego.chestrefill.cli;
+
+import net.minecraft.util.DirectoryLock;
+import org.samo_lego.chestrefill.storage.RefillIndex;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Offline tool to audit and migrate <code>ChestRefill</code> data of a world, without starting a server.
+ * <pre>
+ * Usage: &lt;operation&gt; &lt;world folder&gt; [--threads &lt;n&gt;] [--loot-table &lt;id&gt;] [--dry-run]
+ *
+ * Operations:
+ *   stats           counts containers, refills and looters
+ *   reset-counters  gives containers all of their refills again
+ *   prune-looters   forgets who looted the containers
+ *   rewrite         rewrites all tags in the current format
+ * </pre>
+ * Modifying operations refuse to run while the world is in use by a server,
+ * <code>stats</code> never writes to region files and can also run on a world in use.
+ * Operations that change refill counters or looters delete the refill index of each dimension,
+ * as its records would be outdated. The mod rebuilds records as containers get loaded.
+ */
+public final class ChestRefillCli {
+    private static final int TOP_LOOT_TABLES = 20;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            usage();
+            return;
+        }
+
+        Operation operation = Operation.byId(args[0]);
+        Path world = Path.of(args[1]).toAbsolutePath().normalize();
+        int threads = Runtime.getRuntime().availableProcessors();
+        String lootTable = null;
+        boolean dryRun = false;
+
+        for (int i = 2; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--threads" -> threads = Integer.parseInt(args[++i]);
+                case "--loot-table" -> lootTable = args[++i];
+                case "--dry-run" -> dryRun = true;
+                default -> {
+                    System.err.println("Unknown option: " + args[i]);
+                    usage();
+                    return;
+                }
+            }
+        }
+
+        if (operation == null) {
+            System.err.println("Unknown operation: " + args[0]);
+            usage();
+            return;
+        }
+        if (!Files.isRegularFile(world.resolve("level.dat"))) {
+            System.err.println(world + " is not a world folder, level.dat is missing.");
+            System.exit(1);
+        }
+        if (operation.modifies && !dryRun && DirectoryLock.isLocked(world)) {
+            System.err.println("World is in use, stop the server first.");
+            System.exit(1);
+        }
+
+        RegionScanner scanner = new RegionScanner(world, operation, lootTable, dryRun);
+        List<Path> files = scanner.findRegionFiles();
+        System.out.println("Running " + operation.id + " on " + files.size() + " region files with " + threads + " threads" +
+                (dryRun && operation.modifies ? " (dry run)" : "") + " ...");
+
+        long start = System.nanoTime();
+        scanner.scan(files, threads);
+        List<Path> indexFiles = operation.outdatesIndex && scanner.modifiedContainers.sum() > 0 ?
+                dropRefillIndexes(world, dryRun) : List.of();
+        long millis = (System.nanoTime() - start) / 1_000_000;
+
+        printStats(scanner, operation, dryRun);
+        if (!indexFiles.isEmpty()) {
+            System.out.println((dryRun ? "Would delete " : "Deleted ") + indexFiles.size() +
+                    " outdated refill index files, they are rebuilt as containers get loaded:");
+            indexFiles.forEach(file -> System.out.println("  " + world.relativize(file)));
+        }
+        System.out.println("Done in " + millis + " ms.");
+        if (scanner.errors.sum() > 0) {
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Deletes the refill index (<code>data/chestrefill_index.dat</code> and its
+     * <code>data/chestrefill_index</code> segment folder) of every dimension.
+     * @param world world folder.
+     * @param dryRun whether to only find the files.
+     * @return paths of index files.
+     */
+    private static List<Path> dropRefillIndexes(Path world, boolean dryRun) throws IOException {
+        String fileName = RefillIndex.FILE_ID + ".dat";
+        List<Path> indexFiles;
+        try (Stream<Path> files = Files.walk(world)) {
+            indexFiles = files.filter(file -> isInDataFolder(file, fileName) || isInDataFolder(file, RefillIndex.FILE_ID) ||
+                            isInDataFolder(file.getParent(), RefillIndex.FILE_ID))
+                    .toList();
+        }
+        if (!dryRun) {
+            // Segment files come after their folder
+            for (Path file : indexFiles.reversed()) {
+                Files.delete(file);
+            }
+        }
+        return indexFiles;
+    }
+
+    private static boolean isInDataFolder(Path file, String name) {
+        Path parent = file.getParent();
+        return parent != null && file.getFileName().toString().equals(name) && parent.getFileName().toString().equals("data");
+    }
+
+    private static void printStats(RegionScanner scanner, Operation operation, boolean dryRun) {
+        System.out.println("Region files: " + scanner.regionFiles.sum() + " (" + scanner.errors.sum() + " failed)");
+        System.out.println("Chunks: " + scanner.chunks.sum());
+        System.out.println("Refillable containers: " + scanner.containers.sum() +
+                " (" + scanner.legacyContainers.sum() + " in legacy format)");
+        System.out.println("Refills: " + scanner.refills.sum());
+        System.out.println("Looters: " + scanner.looters.sum());
+
+        if (operation.modifies) {
+            System.out.println((dryRun ? "Would modify " : "Modified ") + scanner.modifiedContainers.sum() +
+                    " containers in " + scanner.modifiedChunks.sum() + " chunks.");
+        }
+
+        System.out.println("Containers by loot table:");
+        scanner.containersByLootTable.entrySet().stream()
+                .sorted(Comparator.comparingLong((Map.Entry<String, LongAdder> entry) -> entry.getValue().sum()).reversed())
+                .limit(TOP_LOOT_TABLES)
+                .forEach(entry -> System.out.println("  " + entry.getKey() + ": " + entry.getValue().sum()));
+    }
+
+    private static void usage() {
+        System.out.println("""
+                Usage: <operation> <world folder> [--threads <n>] [--loot-table <id>] [--dry-run]
+
+                Operations:
+                  stats           counts containers, refills and looters
+                  reset-counters  gives containers all of their refills again
+                  prune-looters   forgets who looted the containers
+                  rewrite         rewrites all tags in the current format
+
+                Options:
+                  --threads <n>       number of region files to process in parallel (default: number of CPUs)
+                  --loot-table <id>   only modify containers with the given loot table
+                  --dry-run           count changes without writing them""");
+    }
+}
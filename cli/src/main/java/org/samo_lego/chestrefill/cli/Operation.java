@@ -0,0 +1,82 @@
+package org.samo_lego.chestrefill.cli;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.samo_lego.chestrefill.storage.RefillState;
+
+/**
+ * What to do with each <code>ChestRefill</code> tag found in the world.
+ */
+public enum Operation {
+    /**
+     * Only collects statistics. Region files are read by {@link RegionReader}, which never writes to them,
+     * so it's safe to run while a server uses the world. Chunks are not fully parsed.
+     */
+    STATS("stats", false, false) {
+        @Override
+        public boolean apply(@NotNull RefillState state) {
+            return false;
+        }
+    },
+    /**
+     * Gives containers all of their refills again, including the per-player refill counts of their looters.
+     */
+    RESET_COUNTERS("reset-counters", true, true) {
+        @Override
+        public boolean apply(@NotNull RefillState state) {
+            return state.resetRefillCounter();
+        }
+    },
+    /**
+     * Forgets who looted the containers, so everyone can loot them again.
+     */
+    PRUNE_LOOTERS("prune-looters", true, true) {
+        @Override
+        public boolean apply(@NotNull RefillState state) {
+            if (state.getLootedPlayers().isEmpty()) {
+                return false;
+            }
+            state.clearLooters();
+            return true;
+        }
+    },
+    /**
+     * Rewrites every tag in the current format, e.g. to migrate legacy <code>LootedUUIDs</code> and <code>LootedPlayers</code> lists.
+     */
+    REWRITE("rewrite", true, false) {
+        @Override
+        public boolean apply(@NotNull RefillState state) {
+            return true;
+        }
+    };
+
+    public final String id;
+    public final boolean modifies;
+    /**
+     * Whether modified states no longer match their records in the refill index of their dimension.
+     */
+    public final boolean outdatesIndex;
+
+    Operation(String id, boolean modifies, boolean outdatesIndex) {
+        this.id = id;
+        this.modifies = modifies;
+        this.outdatesIndex = outdatesIndex;
+    }
+
+    /**
+     * Applies the operation to a decoded refill state.
+     * @param state state of a single container.
+     * @return <code>true</code> if the state should be saved back, otherwise <code>false</code>.
+     */
+    public abstract boolean apply(@NotNull RefillState state);
+
+    @Nullable
+    public static Operation byId(String id) {
+        for (Operation operation : values()) {
+            if (operation.id.equals(id)) {
+                return operation;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,101 @@
+package org.samo_lego.chestrefill.cli;
+
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.chunk.storage.RegionFile;
+import net.minecraft.world.level.chunk.storage.RegionFileVersion;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads chunks of a region file without ever writing to it.
+ * <p>
+ * {@link RegionFile} opens files for writing and pads them to full sectors on close,
+ * so it must not touch region files of a world a server is using.
+ * This reader only opens them for reading. Chunks the server saves meanwhile might be missed or fail to parse.
+ */
+final class RegionReader implements AutoCloseable {
+    private static final int SECTOR_BYTES = 4096;
+    private static final int CHUNK_HEADER_BYTES = 5;
+    private static final int EXTERNAL_STREAM_FLAG = 128;
+
+    private final Path file;
+    private final FileChannel channel;
+    /**
+     * Sector offset (upper 24 bits) and sector count (lower 8 bits) of each chunk.
+     */
+    private final IntBuffer offsets;
+
+    RegionReader(@NotNull Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        // Offsets of chunks missing from a truncated header stay 0, i.e. not saved
+        ByteBuffer header = ByteBuffer.allocate(SECTOR_BYTES);
+        this.readFully(header, 0L);
+        this.offsets = header.clear().asIntBuffer();
+    }
+
+    /**
+     * Opens the data of the given chunk.
+     * @param pos absolute position of the chunk.
+     * @return decompressed chunk NBT, or <code>null</code> if the chunk isn't saved.
+     */
+    @Nullable
+    public DataInputStream getChunkDataInputStream(@NotNull ChunkPos pos) throws IOException {
+        int offset = this.offsets.get(pos.getRegionLocalX() + pos.getRegionLocalZ() * 32);
+        if (offset == 0) {
+            return null;
+        }
+
+        ByteBuffer sectors = ByteBuffer.allocate((offset & 0xFF) * SECTOR_BYTES);
+        this.readFully(sectors, (long) (offset >>> 8) * SECTOR_BYTES);
+        sectors.flip();
+        if (sectors.remaining() < CHUNK_HEADER_BYTES) {
+            return null;
+        }
+        // Length includes the version byte
+        int length = sectors.getInt() - 1;
+        int versionId = sectors.get();
+        if (length < 0) {
+            return null;
+        }
+
+        RegionFileVersion version = RegionFileVersion.fromId(versionId & ~EXTERNAL_STREAM_FLAG);
+        if (version == null) {
+            throw new IOException("Chunk " + pos + " has unknown compression " + versionId);
+        }
+        InputStream data;
+        if ((versionId & EXTERNAL_STREAM_FLAG) != 0) {
+            // Oversized chunks are saved next to the region file
+            data = Files.newInputStream(this.file.resolveSibling("c." + pos.x + "." + pos.z + ".mcc"));
+        } else if (length > sectors.remaining()) {
+            throw new IOException("Chunk " + pos + " is truncated");
+        } else {
+            data = new ByteArrayInputStream(sectors.array(), CHUNK_HEADER_BYTES, length);
+        }
+        return new DataInputStream(version.wrap(data));
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, position + buffer.position()) == -1) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
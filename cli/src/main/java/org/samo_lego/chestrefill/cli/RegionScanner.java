@@ -0,0 +1,219 @@
+package org.samo_lego.chestrefill.cli;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.NbtAccounter;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.Tag;
+import net.minecraft.nbt.visitors.CollectFields;
+import net.minecraft.nbt.visitors.FieldSelector;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.chunk.storage.RegionFile;
+import net.minecraft.world.level.chunk.storage.RegionStorageInfo;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.samo_lego.chestrefill.storage.RefillState;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Walks all chunk region files of a world and applies an {@link Operation}
+ * to every <code>ChestRefill</code> tag in them.
+ * <p>
+ * Region files are processed in parallel on a fork-join pool, one file per task,
+ * as a region file can't be shared between threads. Read-only operations open region files
+ * with {@link RegionReader}, and only collect the <code>block_entities</code> list of each chunk,
+ * without building the rest of the chunk NBT.
+ */
+public final class RegionScanner {
+    private static final Pattern REGION_FILE = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.mca");
+    private static final int REGION_SIZE = 32;
+
+    private final Path world;
+    private final Operation operation;
+    @Nullable
+    private final String lootTable;
+    private final boolean dryRun;
+
+    public final LongAdder regionFiles = new LongAdder();
+    public final LongAdder chunks = new LongAdder();
+    public final LongAdder modifiedChunks = new LongAdder();
+    public final LongAdder containers = new LongAdder();
+    public final LongAdder modifiedContainers = new LongAdder();
+    public final LongAdder legacyContainers = new LongAdder();
+    public final LongAdder refills = new LongAdder();
+    public final LongAdder looters = new LongAdder();
+    public final LongAdder errors = new LongAdder();
+    public final Map<String, LongAdder> containersByLootTable = new ConcurrentHashMap<>();
+
+    /**
+     * @param world world folder, containing <code>level.dat</code>.
+     * @param operation operation to apply.
+     * @param lootTable only apply modifying operations to containers with this loot table, <code>null</code> for all.
+     * @param dryRun whether to count changes without writing them.
+     */
+    public RegionScanner(@NotNull Path world, @NotNull Operation operation, @Nullable String lootTable, boolean dryRun) {
+        this.world = world;
+        this.operation = operation;
+        this.lootTable = lootTable;
+        this.dryRun = dryRun;
+    }
+
+    /**
+     * Finds chunk region files of all dimensions. Entity and POI region files are skipped.
+     * @return paths of region files.
+     */
+    public List<Path> findRegionFiles() throws IOException {
+        try (Stream<Path> files = Files.walk(this.world)) {
+            return files.filter(file -> REGION_FILE.matcher(file.getFileName().toString()).matches())
+                    .filter(file -> file.getParent() != null && file.getParent().getFileName().toString().equals("region"))
+                    .toList();
+        }
+    }
+
+    /**
+     * Scans the given region files, blocks until all are done.
+     * @param files region files to scan.
+     * @param threads parallelism of the fork-join pool.
+     */
+    public void scan(@NotNull List<Path> files, int threads) throws InterruptedException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            // Parallel stream tasks run in the pool they were submitted from
+            pool.submit(() -> files.parallelStream().forEach(this::scanRegion)).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Scanning region files failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void scanRegion(Path file) {
+        Matcher name = REGION_FILE.matcher(file.getFileName().toString());
+        if (!name.matches()) {
+            return;
+        }
+        // Chunk positions have to be absolute, oversized chunks are saved in files named after them
+        ChunkPos origin = ChunkPos.minFromRegion(Integer.parseInt(name.group(1)), Integer.parseInt(name.group(2)));
+
+        try {
+            if (this.operation.modifies) {
+                RegionStorageInfo info = new RegionStorageInfo(this.world.getFileName().toString(), Level.OVERWORLD, "chunk");
+                try (RegionFile region = new RegionFile(info, file, file.getParent(), false)) {
+                    for (int z = 0; z < REGION_SIZE; ++z) {
+                        for (int x = 0; x < REGION_SIZE; ++x) {
+                            ChunkPos pos = new ChunkPos(origin.x + x, origin.z + z);
+                            if (region.hasChunk(pos)) {
+                                this.modifyChunk(region, pos);
+                            }
+                        }
+                    }
+                }
+            } else {
+                try (RegionReader region = new RegionReader(file)) {
+                    for (int z = 0; z < REGION_SIZE; ++z) {
+                        for (int x = 0; x < REGION_SIZE; ++x) {
+                            this.readChunk(region, new ChunkPos(origin.x + x, origin.z + z));
+                        }
+                    }
+                }
+            }
+            this.regionFiles.increment();
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to process region file " + file + ": " + e);
+            this.errors.increment();
+        }
+    }
+
+    private void readChunk(RegionReader region, ChunkPos pos) throws IOException {
+        CollectFields blockEntities = new CollectFields(new FieldSelector(ListTag.TYPE, "block_entities"));
+        try (DataInputStream input = region.getChunkDataInputStream(pos)) {
+            if (input == null) {
+                return;
+            }
+            NbtIo.parse(input, blockEntities, NbtAccounter.unlimitedHeap());
+        }
+        this.processChunk(blockEntities.getResult() instanceof CompoundTag collected ? collected : new CompoundTag());
+    }
+
+    private void modifyChunk(RegionFile region, ChunkPos pos) throws IOException {
+        CompoundTag chunkTag;
+        try (DataInputStream input = region.getChunkDataInputStream(pos)) {
+            if (input == null) {
+                return;
+            }
+            chunkTag = NbtIo.read(input);
+        }
+
+        if (this.processChunk(chunkTag)) {
+            this.modifiedChunks.increment();
+            if (!this.dryRun) {
+                try (DataOutputStream output = region.getChunkDataOutputStream(pos)) {
+                    NbtIo.write(chunkTag, output);
+                }
+            }
+        }
+    }
+
+    /**
+     * Processes all block entities of a chunk.
+     * @param chunkTag chunk tag, modified in place.
+     * @return <code>true</code> if any block entity was modified, otherwise <code>false</code>.
+     */
+    private boolean processChunk(CompoundTag chunkTag) {
+        this.chunks.increment();
+        boolean changed = false;
+        for (Tag tag : chunkTag.getList("block_entities", Tag.TAG_COMPOUND)) {
+            changed |= this.processBlockEntity((CompoundTag) tag);
+        }
+        return changed;
+    }
+
+    /**
+     * Collects statistics of a block entity and applies the operation to it.
+     * @param blockEntity block entity tag, modified in place.
+     * @return <code>true</code> if the tag was modified, otherwise <code>false</code>.
+     */
+    private boolean processBlockEntity(CompoundTag blockEntity) {
+        CompoundTag refillTag = blockEntity.getCompound(RefillState.TAG_NAME);
+        if (refillTag.isEmpty()) {
+            return false;
+        }
+
+        RefillState state = new RefillState();
+        state.load(refillTag);
+        String lootTable = refillTag.getString("SavedLootTable");
+
+        this.containers.increment();
+        this.containersByLootTable.computeIfAbsent(lootTable, table -> new LongAdder()).increment();
+        this.refills.add(state.getRefillCounter());
+        this.looters.add(state.getLootedPlayers().size());
+        if (refillTag.contains("LootedUUIDs") || refillTag.contains("LootedPlayers")) {
+            this.legacyContainers.increment();
+        }
+
+        if (this.lootTable != null && !this.lootTable.equals(lootTable)) {
+            return false;
+        }
+        if (!this.operation.apply(state)) {
+            return false;
+        }
+        state.save(blockEntity);
+        this.modifiedContainers.increment();
+        return true;
+    }
+}
@@ -2,11 +2,26 @@ package org.samo_lego.chestrefill;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import net.minecraft.server.MinecraftServer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.samo_lego.chestrefill.metrics.MetricsJmx;
+import org.samo_lego.chestrefill.metrics.PrometheusExporter;
+import org.samo_lego.chestrefill.metrics.RefillMetrics;
+import org.samo_lego.chestrefill.refill.IdleBudget;
+import org.samo_lego.chestrefill.refill.LootPoolCache;
+import org.samo_lego.chestrefill.refill.PermissionCache;
+import org.samo_lego.chestrefill.refill.PreRefillScheduler;
+import org.samo_lego.chestrefill.refill.RefillQuery;
+import org.samo_lego.chestrefill.storage.InstancedLoot;
 import org.samo_lego.chestrefill.storage.LootConfig;
+import org.samo_lego.chestrefill.storage.RefillPolicies;
+import org.samo_lego.chestrefill.storage.RefillRegistry;
 
 import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
 
 public class ChestRefill {
     public static final String MOD_ID = "chestrefill";
@@ -17,8 +32,64 @@ public class ChestRefill {
             .serializeNulls()
             .create();
     public static LootConfig config;
+    /**
+     * Ticks between snapshots of values that can only be read on the server thread.
+     */
+    private static final int METRICS_SNAPSHOT_INTERVAL = 20;
 
     public static void init(File configFile) {
         config = LootConfig.load(configFile);
+        try {
+            config.validate();
+            config.writeIfOutdated();
+        } catch (IllegalArgumentException e) {
+            // Config file is left as is, so it can be fixed and reloaded
+            LOGGER.error("Invalid config, using default values until it's fixed: {}", e.getMessage());
+            LootConfig defaults = new LootConfig();
+            defaults.fileLocation = config.fileLocation;
+            config = defaults;
+        }
+        RefillPolicies.compile(config);
+        MetricsJmx.register();
+    }
+
+    public static void onPlayerLeave(UUID player) {
+        PermissionCache.invalidate(player);
+        RefillQuery.discard(player);
+        InstancedLoot.evictAll(player);
+    }
+
+    public static void onServerStarted() {
+        PrometheusExporter.apply(config.metricsHost, config.metricsPort);
+    }
+
+    public static void onServerTick(MinecraftServer server) {
+        if (server.getTickCount() % METRICS_SNAPSHOT_INTERVAL == 0) {
+            Map<String, Integer> trackedContainers = new HashMap<>();
+            RefillRegistry.getAll().forEach((dimension, registry) -> trackedContainers.put(dimension.location().toString(), registry.size()));
+            RefillMetrics.updateTrackedContainers(trackedContainers);
+        }
+
+        long deadline = IdleBudget.deadline(server);
+        if (!IdleBudget.isOver(deadline)) {
+            // Containers next to players first, they're the most likely to be opened soon
+            PreRefillScheduler.tick(server, deadline);
+            LootPoolCache.refill(server, deadline);
+        }
+    }
+
+    public static void onDataPackReload() {
+        LootPoolCache.clear();
+        PreRefillScheduler.clearStaged();
+    }
+
+    public static void onServerStopped() {
+        RefillRegistry.clearAll();
+        PermissionCache.invalidateAll();
+        RefillQuery.discardAll();
+        InstancedLoot.clearDecoded();
+        LootPoolCache.clear();
+        PrometheusExporter.stop();
+        RefillMetrics.updateTrackedContainers(Map.of());
     }
 }
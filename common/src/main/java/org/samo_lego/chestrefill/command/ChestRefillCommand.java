@@ -1,21 +1,43 @@
 package org.samo_lego.chestrefill.command;
 
 import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.IntegerArgumentType;
 import com.mojang.brigadier.context.CommandContext;
 import com.mojang.brigadier.tree.LiteralCommandNode;
 import net.minecraft.ChatFormatting;
+import net.minecraft.Util;
 import net.minecraft.commands.CommandSourceStack;
+import net.minecraft.commands.arguments.coordinates.BlockPosArgument;
+import net.minecraft.core.BlockPos;
 import net.minecraft.network.chat.Component;
+import net.minecraft.network.chat.MutableComponent;
+import net.minecraft.server.level.ServerLevel;
 import org.samo_lego.chestrefill.PlatformHelper;
+import org.samo_lego.chestrefill.metrics.PrometheusExporter;
+import org.samo_lego.chestrefill.metrics.RefillMetrics;
+import org.samo_lego.chestrefill.refill.PermissionCache;
+import org.samo_lego.chestrefill.refill.RefillGate;
+import org.samo_lego.chestrefill.refill.RefillQuery;
 import org.samo_lego.chestrefill.storage.LootConfig;
+import org.samo_lego.chestrefill.storage.RefillIndex;
+import org.samo_lego.chestrefill.storage.RefillPolicies;
+import org.samo_lego.chestrefill.storage.RefillRegistry;
 
 import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
+import static net.minecraft.commands.Commands.argument;
 import static net.minecraft.commands.Commands.literal;
+import static org.samo_lego.chestrefill.ChestRefill.LOGGER;
 import static org.samo_lego.chestrefill.ChestRefill.MOD_ID;
 import static org.samo_lego.chestrefill.ChestRefill.config;
 
 public class ChestRefillCommand {
+    private static final int MAX_QUERY_RADIUS = 4096;
+    private static final int MAX_QUERY_CHUNKS = 512 * 512;
+
     public static void register(CommandDispatcher<CommandSourceStack> dispatcher) {
         LiteralCommandNode<CommandSourceStack> root = dispatcher.register(literal(MOD_ID)
                 .requires(src -> PlatformHelper.hasPermission(src, "chestrefill.config", src.hasPermission(4)))
@@ -23,6 +45,37 @@ public class ChestRefillCommand {
                         .requires(src -> PlatformHelper.hasPermission(src, "chestrefill.config.reload", src.hasPermission(4)))
                         .executes(ChestRefillCommand::reloadConfig)
                 )
+                .then(literal("stats")
+                        .requires(src -> PlatformHelper.hasPermission(src, "chestrefill.stats", src.hasPermission(4)))
+                        .executes(ChestRefillCommand::showStats)
+                        .then(literal("reset")
+                                .executes(ChestRefillCommand::resetStats)
+                        )
+                )
+                .then(literal("index")
+                        .requires(src -> PlatformHelper.hasPermission(src, "chestrefill.index", src.hasPermission(4)))
+                        .executes(ChestRefillCommand::showIndex)
+                )
+                .then(literal("query")
+                        .requires(src -> PlatformHelper.hasPermission(src, "chestrefill.query", src.hasPermission(4)))
+                        .then(literal("radius")
+                                .then(argument("radius", IntegerArgumentType.integer(0, MAX_QUERY_RADIUS))
+                                        .executes(ChestRefillCommand::queryRadius)
+                                )
+                        )
+                        .then(literal("area")
+                                .then(argument("from", BlockPosArgument.blockPos())
+                                        .then(argument("to", BlockPosArgument.blockPos())
+                                                .executes(ChestRefillCommand::queryArea)
+                                        )
+                                )
+                        )
+                        .then(literal("page")
+                                .then(argument("page", IntegerArgumentType.integer(1))
+                                        .executes(context -> showQueryPage(context.getSource(), IntegerArgumentType.getInteger(context, "page")))
+                                )
+                        )
+                )
         );
         LiteralCommandNode<CommandSourceStack> edit = literal("edit")
                 .requires(src -> PlatformHelper.hasPermission(src, "chestrefill.config.edit", src.hasPermission(4)))
@@ -32,9 +85,165 @@ public class ChestRefillCommand {
         root.addChild(edit);
     }
 
+    /**
+     * Reads, validates and compiles the config on the IO pool.
+     * The result is applied on the server thread, only if all of that succeeded,
+     * and only then the file is rewritten in the current format.
+     */
     private static int reloadConfig(CommandContext<CommandSourceStack> context) {
-        LootConfig newConfig = LootConfig.load(new File(config.fileLocation));
-        config.reload(newConfig);
+        CommandSourceStack source = context.getSource();
+        File file = new File(config.fileLocation);
+
+        CompletableFuture.supplyAsync(() -> {
+            LootConfig newConfig = LootConfig.load(file);
+            newConfig.validate();
+            return new LoadedConfig(newConfig, RefillPolicies.build(newConfig));
+        }, Util.ioPool()).whenCompleteAsync((loaded, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                LOGGER.error("Problem occurred when reloading config: {}", cause.getMessage());
+                source.sendFailure(Component.literal("Config was not reloaded: " + cause.getMessage()));
+                return;
+            }
+
+            config.reload(loaded.config());
+            RefillPolicies.publish(loaded.snapshot());
+            loaded.config().writeIfOutdated();
+            PermissionCache.invalidateAll();
+            PrometheusExporter.apply(config.metricsHost, config.metricsPort);
+            source.sendSuccess(() -> Component.translatable("gui.done").append(".").withStyle(ChatFormatting.GREEN), false);
+        }, source.getServer());
+
+        return 1;
+    }
+
+    private record LoadedConfig(LootConfig config, RefillPolicies.Snapshot snapshot) {
+    }
+
+    private static int showStats(CommandContext<CommandSourceStack> context) {
+        CommandSourceStack source = context.getSource();
+        source.sendSuccess(() -> Component.literal("Refills: ").withStyle(ChatFormatting.GOLD)
+                .append(Component.literal(String.valueOf(RefillMetrics.getRefills())).withStyle(ChatFormatting.GREEN))
+                .append(Component.literal(" (pre-generated: " + RefillMetrics.getPregeneratedRefills() + ", first loots: " + RefillMetrics.getFirstLoots() + ")")), false);
+        source.sendSuccess(() -> Component.literal("Refill rejections by check:").withStyle(ChatFormatting.GOLD), false);
+        for (RefillGate gate : RefillGate.values()) {
+            source.sendSuccess(() -> Component.literal(" " + gate.name().toLowerCase() + ": ")
+                    .append(Component.literal(String.valueOf(gate.getRejections())).withStyle(ChatFormatting.GREEN)), false);
+        }
+        return 1;
+    }
+
+    /**
+     * Shows how many indexed containers of the current level are ready to be refilled.
+     * Records of containers that are in loaded chunks but no longer exist are dropped.
+     */
+    private static int showIndex(CommandContext<CommandSourceStack> context) {
+        CommandSourceStack source = context.getSource();
+        ServerLevel level = source.getLevel();
+        RefillIndex index = RefillIndex.get(level);
+        RefillRegistry registry = RefillRegistry.get(level);
+
+        int pruned = index.removeIf(pos -> {
+            BlockPos blockPos = BlockPos.of(pos);
+            return level.isLoaded(blockPos) && registry.get(blockPos) == null;
+        });
+
+        RefillPolicies.Snapshot snapshot = RefillPolicies.current();
+        int ready = index.findReady(snapshot, snapshot.clock.now(level)).size();
+
+        source.sendSuccess(() -> Component.literal("Indexed containers in " + level.dimension().location() + ": ").withStyle(ChatFormatting.GOLD)
+                .append(Component.literal(String.valueOf(index.size())).withStyle(ChatFormatting.GREEN)), false);
+        source.sendSuccess(() -> Component.literal(" ready to refill: ")
+                .append(Component.literal(String.valueOf(ready)).withStyle(ChatFormatting.GREEN)), false);
+        if (pruned > 0) {
+            source.sendSuccess(() -> Component.literal(" removed stale records: ")
+                    .append(Component.literal(String.valueOf(pruned)).withStyle(ChatFormatting.YELLOW)), false);
+        }
+        return ready;
+    }
+
+    private static int queryRadius(CommandContext<CommandSourceStack> context) {
+        int radius = IntegerArgumentType.getInteger(context, "radius");
+        BlockPos center = BlockPos.containing(context.getSource().getPosition());
+        return startQuery(context.getSource(), center, center.offset(-radius, 0, -radius), center.offset(radius, 0, radius));
+    }
+
+    private static int queryArea(CommandContext<CommandSourceStack> context) {
+        BlockPos from = BlockPosArgument.getBlockPos(context, "from");
+        BlockPos to = BlockPosArgument.getBlockPos(context, "to");
+        return startQuery(context.getSource(), BlockPos.containing(context.getSource().getPosition()), from, to);
+    }
+
+    /**
+     * Starts an area query. Unloaded chunks are scanned in the background, nearest first.
+     * Loaded containers are shown right away, the source is told whenever another page fills up,
+     * and the first page is sent again once the whole area is done.
+     */
+    private static int startQuery(CommandSourceStack source, BlockPos center, BlockPos from, BlockPos to) {
+        long chunks = (long) (Math.abs((from.getX() >> 4) - (to.getX() >> 4)) + 1) * (Math.abs((from.getZ() >> 4) - (to.getZ() >> 4)) + 1);
+        if (chunks > MAX_QUERY_CHUNKS) {
+            source.sendFailure(Component.literal("Area is too big, it spans " + chunks + " chunks (max " + MAX_QUERY_CHUNKS + ")."));
+            return 0;
+        }
+
+        UUID sourceId = source.getEntity() != null ? source.getEntity().getUUID() : null;
+        RefillQuery query = RefillQuery.start(sourceId, source.getLevel(), center, from, to,
+                progress -> source.sendSuccess(() -> Component.literal("Found " + progress.size() + " containers in " +
+                                progress.completedChunks() + "/" + progress.chunkCount() + " chunks so far, " +
+                                "use /chestrefill query page <page> to see them.")
+                        .withStyle(ChatFormatting.GRAY), false),
+                finished -> {
+                    source.sendSuccess(() -> Component.literal("Found " + finished.size() + " refillable containers.").withStyle(ChatFormatting.GOLD), false);
+                    showQueryPage(source, 1);
+                });
+
+        if (!query.isFinished()) {
+            source.sendSuccess(() -> Component.literal("Scanning " + query.chunkCount() + " chunks, found " + query.size() + " loaded containers so far ...")
+                    .withStyle(ChatFormatting.GRAY), false);
+            if (query.size() > 0) {
+                showQueryPage(source, 1);
+            }
+        }
+        return 1;
+    }
+
+    private static int showQueryPage(CommandSourceStack source, int page) {
+        RefillQuery query = RefillQuery.get(source.getEntity() != null ? source.getEntity().getUUID() : null);
+        if (query == null) {
+            source.sendFailure(Component.literal("No query to show, run /chestrefill query first."));
+            return 0;
+        }
+        if (page > query.pageCount()) {
+            source.sendFailure(Component.literal("There are only " + query.pageCount() + " pages."));
+            return 0;
+        }
+
+        for (RefillQuery.Result result : query.getPage(page)) {
+            BlockPos pos = result.pos();
+            MutableComponent line = Component.literal(" " + pos.getX() + " " + pos.getY() + " " + pos.getZ() + " ")
+                    .withStyle(result.loaded() ? ChatFormatting.GREEN : ChatFormatting.GRAY)
+                    .append(Component.literal(result.lootTable()).withStyle(ChatFormatting.WHITE))
+                    .append(Component.literal(result.perPlayer() ?
+                                    " refills per player: " + (result.maxRefills() == -1 ? "unlimited" : "max " + result.maxRefills()) :
+                                    " refills: " + result.refillCounter() + "/" + (result.maxRefills() == -1 ? "unlimited" : result.maxRefills()))
+                            .withStyle(ChatFormatting.YELLOW))
+                    .append(Component.literal(result.perPlayer() ? " cooldown: per player" :
+                                    result.cooldownRemaining() > 0 ? " cooldown: " + result.cooldownRemaining() + "s" : " ready")
+                            .withStyle(result.cooldownRemaining() > 0 ? ChatFormatting.RED : ChatFormatting.GREEN))
+                    .append(Component.literal(" looters: " + result.looters()).withStyle(ChatFormatting.AQUA));
+            source.sendSuccess(() -> line, false);
+        }
+        source.sendSuccess(() -> Component.literal("Page " + page + "/" + query.pageCount() + ", use /chestrefill query page <page> for more.")
+                .withStyle(ChatFormatting.GOLD), false);
+        if (!query.isFinished()) {
+            source.sendSuccess(() -> Component.literal("Still scanning, " + query.completedChunks() + "/" + query.chunkCount() +
+                    " chunks done. Results found later may come before these.").withStyle(ChatFormatting.GRAY), false);
+        }
+        return query.size();
+    }
+
+    private static int resetStats(CommandContext<CommandSourceStack> context) {
+        RefillMetrics.reset();
         context.getSource().sendSuccess(() -> Component.translatable("gui.done").append(".").withStyle(ChatFormatting.GREEN), false);
         return 1;
     }
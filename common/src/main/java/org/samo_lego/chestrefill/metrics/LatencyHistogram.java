@@ -0,0 +1,71 @@
+package org.samo_lego.chestrefill.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations with fixed buckets.
+ */
+public final class LatencyHistogram {
+    /**
+     * Upper bounds of the buckets, in nanoseconds. Durations above the last one only count towards the total.
+     */
+    private final long[] bounds;
+    private final LongAdder[] buckets;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram(long... bounds) {
+        this.bounds = bounds.clone();
+        this.buckets = new LongAdder[bounds.length];
+        for (int i = 0; i < bounds.length; ++i) {
+            if (i > 0 && bounds[i] <= bounds[i - 1]) {
+                throw new IllegalArgumentException("Bucket bounds must be increasing.");
+            }
+            this.buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        this.count.increment();
+        this.sumNanos.add(nanos);
+        for (int i = 0; i < this.bounds.length; ++i) {
+            if (nanos <= this.bounds[i]) {
+                this.buckets[i].increment();
+                return;
+            }
+        }
+    }
+
+    public int bucketCount() {
+        return this.bounds.length;
+    }
+
+    public long bound(int bucket) {
+        return this.bounds[bucket];
+    }
+
+    /**
+     * Gets the number of durations in the given bucket, i.e. above the bound of the previous one.
+     * @param bucket index of the bucket.
+     * @return number of durations.
+     */
+    public long bucket(int bucket) {
+        return this.buckets[bucket].sum();
+    }
+
+    public long count() {
+        return this.count.sum();
+    }
+
+    public long sumNanos() {
+        return this.sumNanos.sum();
+    }
+
+    public void reset() {
+        for (LongAdder bucket : this.buckets) {
+            bucket.reset();
+        }
+        this.count.reset();
+        this.sumNanos.reset();
+    }
+}
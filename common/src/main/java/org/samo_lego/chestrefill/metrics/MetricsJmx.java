@@ -0,0 +1,116 @@
+package org.samo_lego.chestrefill.metrics;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import static org.samo_lego.chestrefill.ChestRefill.LOGGER;
+
+/**
+ * Exposes {@link RefillMetrics} as a platform MXBean, so they can be read with any JMX client.
+ */
+public final class MetricsJmx implements RefillMetricsMXBean {
+    public static final String OBJECT_NAME = "org.samo_lego.chestrefill:type=RefillMetrics";
+
+    private MetricsJmx() {
+    }
+
+    /**
+     * Registers the bean with the platform MBean server, unless it's registered already.
+     */
+    public static void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MetricsJmx(), name);
+            }
+        } catch (JMException | SecurityException e) {
+            LOGGER.warn("Failed to register JMX metrics: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public long getFirstLoots() {
+        return RefillMetrics.getFirstLoots();
+    }
+
+    @Override
+    public long getRefills() {
+        return RefillMetrics.getRefills();
+    }
+
+    @Override
+    public long getPregeneratedRefills() {
+        return RefillMetrics.getPregeneratedRefills();
+    }
+
+    @Override
+    public Map<String, Long> getRefillsByLootTable() {
+        return RefillMetrics.getRefillsByLootTable();
+    }
+
+    @Override
+    public Map<String, Long> getRejections() {
+        return RefillMetrics.getRejections();
+    }
+
+    @Override
+    public long getLoots() {
+        return RefillMetrics.getLoots();
+    }
+
+    @Override
+    public double getAverageLooters() {
+        return RefillMetrics.getAverageLooters();
+    }
+
+    @Override
+    public long getMaxLooters() {
+        return RefillMetrics.getMaxLooters();
+    }
+
+    @Override
+    public long getStateLoads() {
+        return RefillMetrics.getStateLoads();
+    }
+
+    @Override
+    public long getStateDecodes() {
+        return RefillMetrics.getStateDecodes();
+    }
+
+    @Override
+    public long getStateSaves() {
+        return RefillMetrics.getStateSaves();
+    }
+
+    @Override
+    public long getStateEncodes() {
+        return RefillMetrics.getStateEncodes();
+    }
+
+    @Override
+    public long getRefillDecisions() {
+        return RefillMetrics.getRefillDecisions().count();
+    }
+
+    @Override
+    public double getAverageRefillDecisionNanos() {
+        LatencyHistogram decisions = RefillMetrics.getRefillDecisions();
+        long count = decisions.count();
+        return count > 0 ? (double) decisions.sumNanos() / count : 0;
+    }
+
+    @Override
+    public Map<String, Integer> getTrackedContainers() {
+        return RefillMetrics.getTrackedContainers();
+    }
+
+    @Override
+    public void reset() {
+        RefillMetrics.reset();
+    }
+}
@@ -0,0 +1,193 @@
+package org.samo_lego.chestrefill.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.samo_lego.chestrefill.ChestRefill.LOGGER;
+
+/**
+ * Serves {@link RefillMetrics} in the Prometheus text format on <code>/metrics</code>.
+ * <p>
+ * Requests are handled on a single daemon thread of the exporter. Only counters and snapshots
+ * of {@link RefillMetrics} are read, so scraping never costs tick time.
+ */
+public final class PrometheusExporter {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    @Nullable
+    private static HttpServer server;
+    @Nullable
+    private static ExecutorService executor;
+    @Nullable
+    private static InetSocketAddress address;
+
+    private PrometheusExporter() {
+    }
+
+    /**
+     * Starts, restarts or stops the exporter, so it listens on the given address.
+     * Does nothing if it's already listening there.
+     *
+     * @param host host to bind to.
+     * @param port port to listen on, 0 to stop the exporter.
+     */
+    public static synchronized void apply(@NotNull String host, int port) {
+        InetSocketAddress wanted = port > 0 ? new InetSocketAddress(host, port) : null;
+        if (wanted != null && wanted.equals(address)) {
+            return;
+        }
+        stop();
+        if (wanted == null) {
+            return;
+        }
+
+        try {
+            HttpServer httpServer = HttpServer.create(wanted, 0);
+            httpServer.createContext("/metrics", PrometheusExporter::handle);
+            executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ChestRefill metrics exporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+            httpServer.setExecutor(executor);
+            httpServer.start();
+            server = httpServer;
+            address = wanted;
+            LOGGER.info("Serving refill metrics on http://{}:{}/metrics", host, port);
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.error("Failed to start metrics exporter on {}:{}: {}", host, port, e.getMessage());
+            stop();
+        }
+    }
+
+    /**
+     * Stops the exporter, if it's running.
+     */
+    public static synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        address = null;
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * Renders all metrics in the Prometheus text format.
+     * @return text exposition of the metrics.
+     */
+    public static String render() {
+        StringBuilder out = new StringBuilder(4096);
+
+        counter(out, "chestrefill_refills_total", "Containers refilled.", RefillMetrics.getRefills());
+        counter(out, "chestrefill_pregenerated_refills_total", "Refills with loot generated ahead of time.", RefillMetrics.getPregeneratedRefills());
+        counter(out, "chestrefill_first_loots_total", "Containers looted for the first time.", RefillMetrics.getFirstLoots());
+
+        header(out, "chestrefill_loot_table_refills_total", "Containers refilled, by loot table.", "counter");
+        RefillMetrics.getRefillsByLootTable().forEach((lootTable, count) ->
+                sample(out, "chestrefill_loot_table_refills_total", "loot_table", lootTable, count));
+
+        header(out, "chestrefill_rejections_total", "Refills rejected, by the check that failed.", "counter");
+        RefillMetrics.getRejections().forEach((reason, count) ->
+                sample(out, "chestrefill_rejections_total", "reason", reason, count));
+
+        header(out, "chestrefill_tracked_containers", "Loaded containers with refill state, by dimension.", "gauge");
+        for (Map.Entry<String, Integer> entry : RefillMetrics.getTrackedContainers().entrySet()) {
+            sample(out, "chestrefill_tracked_containers", "dimension", entry.getKey(), entry.getValue());
+        }
+
+        header(out, "chestrefill_looters_max", "Largest looter history at the time of a loot.", "gauge");
+        out.append("chestrefill_looters_max ").append(RefillMetrics.getMaxLooters()).append('\n');
+        header(out, "chestrefill_looters_average", "Average looter history size at the time of a loot.", "gauge");
+        out.append("chestrefill_looters_average ").append(RefillMetrics.getAverageLooters()).append('\n');
+
+        counter(out, "chestrefill_state_loads_total", "ChestRefill tags loaded.", RefillMetrics.getStateLoads());
+        counter(out, "chestrefill_state_decodes_total", "Lazily loaded ChestRefill tags decoded.", RefillMetrics.getStateDecodes());
+        counter(out, "chestrefill_state_saves_total", "ChestRefill tags saved.", RefillMetrics.getStateSaves());
+        counter(out, "chestrefill_state_encodes_total", "ChestRefill tags encoded anew on save.", RefillMetrics.getStateEncodes());
+
+        histogram(out, "chestrefill_refill_decision_seconds", "Time to run the refill checks of a container.", RefillMetrics.getRefillDecisions());
+
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String label, String labelValue, long value) {
+        out.append(name).append('{').append(label).append("=\"");
+        escape(out, labelValue);
+        out.append("\"} ").append(value).append('\n');
+    }
+
+    /**
+     * Renders a histogram with cumulative buckets, in seconds.
+     */
+    private static void histogram(StringBuilder out, String name, String help, LatencyHistogram histogram) {
+        header(out, name, help, "histogram");
+        // Total is read first, so buckets can't add up to more than it
+        long count = histogram.count();
+        long sumNanos = histogram.sumNanos();
+        long cumulative = 0;
+        for (int i = 0; i < histogram.bucketCount(); ++i) {
+            cumulative += histogram.bucket(i);
+            out.append(name).append("_bucket{le=\"").append(histogram.bound(i) / 1e9).append("\"} ")
+                    .append(Math.min(cumulative, count)).append('\n');
+        }
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(count).append('\n');
+        out.append(name).append("_sum ").append(sumNanos / 1e9).append('\n');
+        out.append(name).append("_count ").append(count).append('\n');
+    }
+
+    private static void escape(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\' -> out.append("\\\\");
+                case '"' -> out.append("\\\"");
+                case '\n' -> out.append("\\n");
+                default -> out.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package org.samo_lego.chestrefill.metrics;
+
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.storage.loot.LootTable;
+import org.jetbrains.annotations.NotNull;
+import org.samo_lego.chestrefill.refill.RefillGate;
+import org.samo_lego.chestrefill.storage.LootTableKeys;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of refill activity, updated on the hot paths of containers.
+ * <p>
+ * All counters are {@link LongAdder}s, so updates don't contend and readers,
+ * such as the JMX bean from {@link MetricsJmx}, can read them from any thread.
+ * Refill rejections are counted by the {@link RefillGate}s themselves.
+ * <p>
+ * Values that need the server thread, such as the number of tracked containers,
+ * are published as snapshots by the server thread, so readers never touch levels or block entities.
+ */
+public final class RefillMetrics {
+    private static final LongAdder FIRST_LOOTS = new LongAdder();
+    private static final LongAdder REFILLS = new LongAdder();
+    private static final LongAdder PREGENERATED_REFILLS = new LongAdder();
+    private static final Map<ResourceKey<LootTable>, LongAdder> REFILLS_BY_LOOT_TABLE = new ConcurrentHashMap<>();
+
+    private static final LongAdder LOOTS = new LongAdder();
+    private static final LongAdder LOOTERS_AT_LOOT = new LongAdder();
+    private static final LongAccumulator MAX_LOOTERS = new LongAccumulator(Math::max, 0);
+
+    private static final LongAdder STATE_LOADS = new LongAdder();
+    private static final LongAdder STATE_DECODES = new LongAdder();
+    private static final LongAdder STATE_SAVES = new LongAdder();
+    private static final LongAdder STATE_ENCODES = new LongAdder();
+
+    /**
+     * Time it takes to decide whether to refill a container, from 250 ns to 1 ms.
+     */
+    private static final LatencyHistogram REFILL_DECISIONS = new LatencyHistogram(
+            250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 1_000_000
+    );
+    private static volatile Map<String, Integer> trackedContainers = Map.of();
+
+    private RefillMetrics() {
+    }
+
+    /**
+     * Counts the first loot of a container, i.e. unpacking its original loot.
+     */
+    public static void firstLoot() {
+        FIRST_LOOTS.increment();
+    }
+
+    /**
+     * Counts a refill.
+     * @param lootTable loot table the container was refilled with.
+     * @param pregenerated whether the loot was generated ahead of time.
+     */
+    public static void refill(@NotNull ResourceKey<LootTable> lootTable, boolean pregenerated) {
+        REFILLS.increment();
+        if (pregenerated) {
+            PREGENERATED_REFILLS.increment();
+        }
+        REFILLS_BY_LOOT_TABLE.computeIfAbsent(lootTable, key -> new LongAdder()).increment();
+    }
+
+    /**
+     * Records the size of the looter history of a container after it was looted.
+     * @param looters number of remembered looters.
+     */
+    public static void looted(int looters) {
+        LOOTS.increment();
+        LOOTERS_AT_LOOT.add(looters);
+        MAX_LOOTERS.accumulate(looters);
+    }
+
+    /**
+     * Counts a <code>ChestRefill</code> tag being loaded.
+     */
+    public static void stateLoaded() {
+        STATE_LOADS.increment();
+    }
+
+    /**
+     * Counts a lazily loaded <code>ChestRefill</code> tag being decoded.
+     */
+    public static void stateDecoded() {
+        STATE_DECODES.increment();
+    }
+
+    /**
+     * Counts a save of a refill state.
+     * @param encoded whether a new tag was encoded, <code>false</code> if a previous one was reused.
+     */
+    public static void stateSaved(boolean encoded) {
+        STATE_SAVES.increment();
+        if (encoded) {
+            STATE_ENCODES.increment();
+        }
+    }
+
+    /**
+     * Records how long it took to run the refill checks of a container.
+     * @param nanos duration in nanoseconds.
+     */
+    public static void refillDecision(long nanos) {
+        REFILL_DECISIONS.record(nanos);
+    }
+
+    /**
+     * Publishes the number of containers tracked in each level.
+     * Should be called from the server thread.
+     * @param containers number of tracked containers, by dimension id.
+     */
+    public static void updateTrackedContainers(@NotNull Map<String, Integer> containers) {
+        trackedContainers = Map.copyOf(containers);
+    }
+
+    public static long getFirstLoots() {
+        return FIRST_LOOTS.sum();
+    }
+
+    public static long getRefills() {
+        return REFILLS.sum();
+    }
+
+    public static long getPregeneratedRefills() {
+        return PREGENERATED_REFILLS.sum();
+    }
+
+    /**
+     * Gets refill counts per loot table.
+     * @return refills by loot table id, sorted by id.
+     */
+    public static Map<String, Long> getRefillsByLootTable() {
+        Map<String, Long> refills = new TreeMap<>();
+        REFILLS_BY_LOOT_TABLE.forEach((lootTable, count) -> refills.put(LootTableKeys.id(lootTable), count.sum()));
+        return refills;
+    }
+
+    /**
+     * Gets rejected refills per check.
+     * @return rejections by lowercase name of the {@link RefillGate}, in order of the checks.
+     */
+    public static Map<String, Long> getRejections() {
+        Map<String, Long> rejections = new LinkedHashMap<>();
+        for (RefillGate gate : RefillGate.values()) {
+            rejections.put(gate.name().toLowerCase(), gate.getRejections());
+        }
+        return rejections;
+    }
+
+    public static long getLoots() {
+        return LOOTS.sum();
+    }
+
+    /**
+     * Gets the average size of looter histories at the time they were looted.
+     * @return average number of looters, 0 if nothing was looted yet.
+     */
+    public static double getAverageLooters() {
+        long loots = LOOTS.sum();
+        return loots > 0 ? (double) LOOTERS_AT_LOOT.sum() / loots : 0;
+    }
+
+    public static long getMaxLooters() {
+        return MAX_LOOTERS.get();
+    }
+
+    public static long getStateLoads() {
+        return STATE_LOADS.sum();
+    }
+
+    public static long getStateDecodes() {
+        return STATE_DECODES.sum();
+    }
+
+    public static long getStateSaves() {
+        return STATE_SAVES.sum();
+    }
+
+    public static long getStateEncodes() {
+        return STATE_ENCODES.sum();
+    }
+
+    public static LatencyHistogram getRefillDecisions() {
+        return REFILL_DECISIONS;
+    }
+
+    /**
+     * Gets the number of containers tracked in each level, as of the last snapshot.
+     * @return tracked containers by dimension id.
+     */
+    public static Map<String, Integer> getTrackedContainers() {
+        return trackedContainers;
+    }
+
+    /**
+     * Resets all counters, including rejection counters of {@link RefillGate}s.
+     */
+    public static void reset() {
+        FIRST_LOOTS.reset();
+        REFILLS.reset();
+        PREGENERATED_REFILLS.reset();
+        REFILLS_BY_LOOT_TABLE.clear();
+        LOOTS.reset();
+        LOOTERS_AT_LOOT.reset();
+        MAX_LOOTERS.reset();
+        STATE_LOADS.reset();
+        STATE_DECODES.reset();
+        STATE_SAVES.reset();
+        STATE_ENCODES.reset();
+        REFILL_DECISIONS.reset();
+        RefillGate.resetAll();
+    }
+}
@@ -0,0 +1,40 @@
+package org.samo_lego.chestrefill.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link RefillMetrics}, registered as <code>org.samo_lego.chestrefill:type=RefillMetrics</code>.
+ */
+public interface RefillMetricsMXBean {
+    long getFirstLoots();
+
+    long getRefills();
+
+    long getPregeneratedRefills();
+
+    Map<String, Long> getRefillsByLootTable();
+
+    Map<String, Long> getRejections();
+
+    long getLoots();
+
+    double getAverageLooters();
+
+    long getMaxLooters();
+
+    long getStateLoads();
+
+    long getStateDecodes();
+
+    long getStateSaves();
+
+    long getStateEncodes();
+
+    long getRefillDecisions();
+
+    double getAverageRefillDecisionNanos();
+
+    Map<String, Integer> getTrackedContainers();
+
+    void reset();
+}
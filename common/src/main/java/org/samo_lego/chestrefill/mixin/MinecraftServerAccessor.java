@@ -0,0 +1,14 @@
+package org.samo_lego.chestrefill.mixin;
+
+import net.minecraft.server.MinecraftServer;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.gen.Accessor;
+
+@Mixin(MinecraftServer.class)
+public interface MinecraftServerAccessor {
+    /**
+     * Time at which the next tick is scheduled to start, in {@link net.minecraft.Util#getNanos()} time.
+     */
+    @Accessor("nextTickTimeNanos")
+    long getNextTickTimeNanos();
+}
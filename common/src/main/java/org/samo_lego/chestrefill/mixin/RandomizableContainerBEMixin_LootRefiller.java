@@ -1,32 +1,50 @@
 package org.samo_lego.chestrefill.mixin;
 
+import net.minecraft.advancements.CriteriaTriggers;
 import net.minecraft.core.BlockPos;
-import net.minecraft.core.registries.Registries;
+import net.minecraft.core.NonNullList;
 import net.minecraft.nbt.CompoundTag;
-import net.minecraft.nbt.ListTag;
-import net.minecraft.nbt.StringTag;
 import net.minecraft.resources.ResourceKey;
-import net.minecraft.resources.ResourceLocation;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.ServerPlayer;
 import net.minecraft.world.RandomizableContainer;
+import net.minecraft.world.entity.player.Inventory;
 import net.minecraft.world.entity.player.Player;
+import net.minecraft.world.inventory.AbstractContainerMenu;
+import net.minecraft.world.item.ItemStack;
 import net.minecraft.world.level.block.entity.BaseContainerBlockEntity;
 import net.minecraft.world.level.block.entity.BlockEntityType;
 import net.minecraft.world.level.block.entity.RandomizableContainerBlockEntity;
 import net.minecraft.world.level.block.state.BlockState;
+import net.minecraft.world.level.storage.loot.LootParams;
 import net.minecraft.world.level.storage.loot.LootTable;
+import net.minecraft.world.level.storage.loot.parameters.LootContextParamSets;
+import net.minecraft.world.level.storage.loot.parameters.LootContextParams;
+import net.minecraft.world.phys.Vec3;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.samo_lego.chestrefill.PlatformHelper;
+import org.samo_lego.chestrefill.metrics.RefillMetrics;
+import org.samo_lego.chestrefill.refill.InstancedContainer;
+import org.samo_lego.chestrefill.refill.LootPoolCache;
+import org.samo_lego.chestrefill.refill.PermissionCache;
+import org.samo_lego.chestrefill.refill.PreRefillScheduler;
+import org.samo_lego.chestrefill.refill.PreRefillable;
+import org.samo_lego.chestrefill.refill.RefillGate;
+import org.samo_lego.chestrefill.refill.SeedMixer;
+import org.samo_lego.chestrefill.storage.InstancedLoot;
+import org.samo_lego.chestrefill.storage.RefillIndex;
+import org.samo_lego.chestrefill.storage.RefillPolicies;
+import org.samo_lego.chestrefill.storage.RefillPolicy;
+import org.samo_lego.chestrefill.storage.RefillRegistry;
+import org.samo_lego.chestrefill.storage.RefillState;
 import org.spongepowered.asm.mixin.*;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
-import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
 
-import java.util.HashSet;
-import java.util.Set;
-
-import static org.samo_lego.chestrefill.ChestRefill.config;
+import java.util.UUID;
 
+import static org.samo_lego.chestrefill.ChestRefill.LOGGER;
 
 /**
  * <b>RandomizableContainerBEMixin_LootRefiller</b> is a mixin class that extends {@link BaseContainerBlockEntity} and
@@ -40,7 +58,7 @@ import static org.samo_lego.chestrefill.ChestRefill.config;
  */
 @SuppressWarnings("AddedMixinMembersNamePattern")
 @Mixin(value = RandomizableContainerBlockEntity.class)
-public abstract class RandomizableContainerBEMixin_LootRefiller extends BaseContainerBlockEntity implements RandomizableContainer {
+public abstract class RandomizableContainerBEMixin_LootRefiller extends BaseContainerBlockEntity implements RandomizableContainer, PreRefillable {
     protected RandomizableContainerBEMixin_LootRefiller(
             BlockEntityType<?> type,
             @NotNull BlockPos pos,
@@ -68,51 +86,34 @@ public abstract class RandomizableContainerBEMixin_LootRefiller extends BaseCont
 
 
 // =-=-=-=-= Unique Vars =-=-=-=-=
+    /**
+     * Refill state, only present once the container has been looted.
+     * Always has a saved loot table if set.
+     */
     @Unique
-    private ResourceKey<LootTable> savedLootTable;
-
-    @Unique
-    private final Set<String> lootedUUIDs = new HashSet<>();
-
-    @Unique
-    private long savedLootTableSeed, lastRefillTime, minWaitTime;
-
-    @Unique
-    private boolean allowRelootByDefault, randomizeLootSeed, refillFull, hadCustomData;
-
-    @Unique
-    private int refillCounter, maxRefills;
+    @Nullable
+    private RefillState refillState;
 
 
 
 // =-=-=-=-= Injections/Overrides =-=-=-=-=
-    @Inject(method = "<init>", at = @At("RETURN"))
-    private void onInit(CallbackInfo ci) {
-        this.maxRefills = config.defaultProperties.maxRefills;
-        this.refillFull = config.defaultProperties.refillFull;
-        this.randomizeLootSeed = config.defaultProperties.randomizeLootSeed;
-        this.allowRelootByDefault = config.defaultProperties.allowRelootByDefault;
-        this.minWaitTime = config.defaultProperties.minWaitTime;
-
-        this.refillCounter = 0;
-        this.lastRefillTime = 0;
-        this.savedLootTableSeed = 0L;
-        this.hadCustomData = false;
-    }
-
     public void unpackLootTable(@Nullable Player player) {
         if (player != null) {
-            if (this.lootTable == null && this.savedLootTable != null) {
-                this.refillLootTable(player);
-            } else {
+            if (this.lootTable != null) {
                 // Original loot
-                this.lastRefillTime = System.currentTimeMillis();
-                this.lootedUUIDs.add(player.getStringUUID());
-
-                if (this.lootTable != null) {
-                    this.savedLootTable = this.lootTable;
-                    this.savedLootTableSeed = this.lootTableSeed;
+                if (this.refillState == null) {
+                    this.refillState = new RefillState();
+                    // Indexed with the loot table already set
+                    this.refillState.setSavedLootTable(this.lootTable, this.lootTableSeed);
+                    this.trackRefillState();
+                } else {
+                    this.refillState.setSavedLootTable(this.lootTable, this.lootTableSeed);
                 }
+                RefillMetrics.firstLoot();
+                boolean newLooter = this.refillState.markLooted(player.getUUID(), this.now());
+                this.updateRefillIndex(newLooter ? player.getUUID() : null);
+            } else if (this.refillState != null) {
+                this.refillLootTable(player);
             }
         }
 
@@ -120,187 +121,380 @@ public abstract class RandomizableContainerBEMixin_LootRefiller extends BaseCont
     }
 
     public boolean tryLoadLootTable(@NotNull CompoundTag compoundTag) {
-        CompoundTag refillTag = compoundTag.getCompound("ChestRefill");
+        CompoundTag refillTag = compoundTag.getCompound(RefillState.TAG_NAME);
 
         if (!refillTag.isEmpty()) {
-            this.loadRefillTags(refillTag);
-        } else if (this.lootTable != null) {
-            this.savedLootTable = this.lootTable;
-            this.savedLootTableSeed = this.lootTableSeed;
+            this.untrackRefillState();
+            this.evictInstancedLoot();
+            this.refillState = new RefillState();
+            // Decoded on first interaction, most loaded containers never get one
+            this.refillState.loadLazily(refillTag);
+            this.trackRefillState();
         }
 
         return RandomizableContainer.super.tryLoadLootTable(compoundTag);
     }
 
     public boolean trySaveLootTable(@NotNull CompoundTag compoundTag) {
-        if (this.lootTable == null && this.savedLootTable != null) {
-            this.saveRefillTags(compoundTag);
+        // Save only if chest was looted (if there's no more original loot table)
+        if (this.lootTable == null && this.refillState != null) {
+            this.refillState.save(compoundTag);
         }
 
         return RandomizableContainer.super.trySaveLootTable(compoundTag);
     }
 
+    @Override
+    public void clearRemoved() {
+        super.clearRemoved();
+        this.trackRefillState();
+    }
+
+    @Override
+    public void setRemoved() {
+        super.setRemoved();
+        this.untrackRefillState();
+        this.evictInstancedLoot();
+        if (this.isDestroyed()) {
+            this.removeFromRefillIndex();
+        }
+    }
+
+    /**
+     * Opens the player's own inventory instead of the shared one, if the container has instanced loot.
+     * The inventory is generated on first open and refilled like the shared one would be.
+     */
+    @Inject(
+            method = "createMenu(ILnet/minecraft/world/entity/player/Inventory;Lnet/minecraft/world/entity/player/Player;)Lnet/minecraft/world/inventory/AbstractContainerMenu;",
+            at = @At("HEAD"),
+            cancellable = true
+    )
+    private void openInstancedLoot(int containerId, Inventory inventory, Player player, CallbackInfoReturnable<AbstractContainerMenu> cir) {
+        if (!(this.level instanceof ServerLevel serverLevel) || !InstancedContainer.supportsSize(this.getContainerSize())) {
+            return;
+        }
+        RefillPolicy policy = this.lootTable != null ? RefillPolicies.get(this.lootTable) :
+                this.refillState != null ? this.refillState.getPolicy() : null;
+        if (policy == null || !policy.instancedLoot) {
+            return;
+        }
+        if (!this.canOpen(player)) {
+            cir.setReturnValue(null);
+            return;
+        }
+
+        if (this.lootTable != null) {
+            // Never looted, from now on loot is only generated into player inventories
+            if (this.refillState == null) {
+                this.refillState = new RefillState();
+                // Indexed with the loot table already set
+                this.refillState.setSavedLootTable(this.lootTable, this.lootTableSeed);
+                this.trackRefillState();
+            } else {
+                this.refillState.setSavedLootTable(this.lootTable, this.lootTableSeed);
+            }
+            this.setLootTable(null);
+        }
+
+        UUID uuid = player.getUUID();
+        InstancedLoot instances = this.refillState.getOrCreateInstancedLoot();
+        InstancedContainer view = instances.get(uuid, this, serverLevel.registryAccess());
+        if (view == null) {
+            view = instances.create(uuid, this, serverLevel.registryAccess());
+            this.fillInstancedLoot(serverLevel, view, player, SeedMixer.instanceSeed(this.refillState.getSavedLootTableSeed(), this.getBlockPos().asLong(), uuid));
+            RefillMetrics.firstLoot();
+            boolean newLooter = this.refillState.markLooted(uuid, this.now());
+            this.updateRefillIndex(newLooter ? uuid : null);
+            this.setChanged();
+        } else if (this.canRefillFor(player, view)) {
+            view.clearContent();
+            boolean pregenerated = this.fillPregeneratedLoot(player, view.getItems(), false);
+            if (!pregenerated) {
+                this.fillInstancedLoot(serverLevel, view, player, this.refillSeed(player,
+                        SeedMixer.instanceSeed(this.refillState.getSavedLootTableSeed(), this.getBlockPos().asLong(), uuid)));
+            }
+            RefillMetrics.refill(this.refillState.getSavedLootTable(), pregenerated);
+            boolean newLooter = this.refillState.markRefilled(uuid, this.now());
+            this.updateRefillIndex(newLooter ? uuid : null);
+            this.setChanged();
+        }
+
+        // Items taken from the view mark the container as changed by themselves
+        cir.setReturnValue(view.createMenu(containerId, inventory));
+    }
+
+
+
+// =-=-=-=-= PreRefillable =-=-=-=-=
+    @Override
+    public boolean stageRefill(@NotNull ServerLevel level, long randomSeed) {
+        // Cheap checks first, the state might not be decoded yet
+        if (this.lootTable != null || this.refillState == null || this.isRemoved() || !super.isEmpty() ||
+                this.refillState.hasStagedLoot()) {
+            return false;
+        }
+        RefillPolicy policy = this.refillState.getPolicy();
+        if (!PreRefillScheduler.canStage(policy)) {
+            return false;
+        }
+
+        long seed = policy.randomizeLootSeed ? randomSeed : this.refillState.getSavedLootTableSeed();
+        try {
+            this.refillState.stageLoot(LootPoolCache.generate(level, this.refillState.getSavedLootTable(), this.getContainerSize(), this.getBlockPos(), seed));
+        } catch (RuntimeException e) {
+            LOGGER.warn("Failed to pre-generate loot of {} at {}: {}", this.refillState.getSavedLootTable().location(), this.getBlockPos(), e.getMessage());
+            // Empty loot doesn't fit the container, so it's not used, but keeps the container from being staged again
+            this.refillState.stageLoot(new ItemStack[0]);
+        }
+        return true;
+    }
+
 
 
 // =-=-=-=-= Unique Checker Methods =-=-=-=-=
     /**
      * Whether container can be refilled for given player.
-     * <p>
-     * Checks for Player permissions,
-     * wether the storage can be refilled
-     * and whether enough time has passed since last refill.
+     * Counts a rejection on the gate that failed, if any, and records how long the checks took.
      *
      * @param player player to check refilling for.
+     * @param view instanced inventory of the player, <code>null</code> to check the shared one.
      * @return <code>true</code> if all checks succeed, otherwise <code>false</code>.
-     * @see RandomizableContainerBEMixin_LootRefiller#canStillRefill()
-     * @see RandomizableContainerBEMixin_LootRefiller#hasPermission(Player)
-     * @see RandomizableContainerBEMixin_LootRefiller#hasEnoughTimePassed()
+     * @see RandomizableContainerBEMixin_LootRefiller#findRejectingGate(Player, InstancedContainer)
      * @see RandomizableContainerBEMixin_LootRefiller#refillLootTable(Player)
      */
     @Unique
-    private boolean canRefillFor(@NotNull Player player) {
-        return this.canStillRefill() && this.hasEnoughTimePassed() && this.hasPermission(player);
+    private boolean canRefillFor(@NotNull Player player, @Nullable InstancedContainer view) {
+        long start = System.nanoTime();
+        RefillGate gate = this.findRejectingGate(player, view);
+        RefillMetrics.refillDecision(System.nanoTime() - start);
+        if (gate != null) {
+            gate.reject();
+            return false;
+        }
+        return true;
     }
 
     /**
-     * Whether a player has permission to reloot from this storage.
-     * @param player Player opening the storage
-     * @return <code>true</code> if the player has the <code>chestrefill.allowReloot</code> permission node or hasn't looted this storage. otherwise <code>false</code>.
+     * Runs the refill checks of {@link RefillGate} for this container.
+     *
+     * @param player player to check refilling for.
+     * @param view instanced inventory of the player, <code>null</code> to check the shared one.
+     * @return the gate that rejected the refill, or <code>null</code> if all checks succeed.
+     * @see RefillGate#findRejecting(RefillState, UUID, long, java.util.function.BooleanSupplier, java.util.function.BooleanSupplier)
      */
     @Unique
-    private boolean hasPermission(@NotNull Player player) {
-        return PlatformHelper.hasPermission(
-                player.createCommandSourceStack(),
-                "chestrefill.allowReloot",
-                this.allowRelootByDefault) || !this.lootedUUIDs.contains(player.getStringUUID()
-        );
+    @Nullable
+    private RefillGate findRejectingGate(@NotNull Player player, @Nullable InstancedContainer view) {
+        return RefillGate.findRejecting(this.refillState, player.getUUID(), this.now(),
+                view != null ? view::isEmpty : this::isSharedEmpty,
+                () -> PermissionCache.canReloot(player, this.refillState.getPolicy().allowRelootByDefault));
     }
 
     /**
-     * Whether this container hasn't reached max refills yet.
-     * @return <code>true</code> if container can still be refilled, <code>false</code> if refills is more than max refills.
+     * Whether the shared inventory is empty, without unpacking the loot table.
      */
     @Unique
-    private boolean canStillRefill() {
-        return this.refillCounter < this.maxRefills || this.maxRefills == -1;
+    private boolean isSharedEmpty() {
+        return super.isEmpty();
     }
 
+
+
+// =-=-=-=-= Unique ChestRefill Methods =-=-=-=-=
     /**
-     * Tells whether enough time has passed since previous refill.
-     * @return <code>true</code> if container can already be refilled, otherwise <code>false</code>.
+     * Registers refill state of this container in the {@link RefillRegistry} of its level
+     * and refreshes its {@link RefillIndex} record, if the container is in a server level.
+     * States that weren't decoded yet only get indexed if they're missing from the index,
+     * as the index is updated on every change of the state.
      */
     @Unique
-    private boolean hasEnoughTimePassed() {
-        // * 1000 as seconds are used in config.
-        return System.currentTimeMillis() - this.lastRefillTime > this.minWaitTime * 1000;
+    private void trackRefillState() {
+        if (this.refillState != null && this.level instanceof ServerLevel serverLevel && !this.isRemoved()) {
+            RefillRegistry.get(serverLevel).track(this.getBlockPos(), this.refillState);
+            RefillIndex index = RefillIndex.get(serverLevel);
+            if (this.refillState.isDecoded() || !index.contains(this.getBlockPos())) {
+                index.update(this.getBlockPos(), this.refillState);
+            }
+        }
     }
 
+    /**
+     * Writes refill state of this container to the {@link RefillIndex} of its level.
+     * @param newLooter player that looted the container for the first time, if any.
+     */
+    @Unique
+    private void updateRefillIndex(@Nullable UUID newLooter) {
+        if (this.refillState != null && this.level instanceof ServerLevel serverLevel) {
+            RefillIndex index = RefillIndex.get(serverLevel);
+            boolean evicted = this.refillState.pollLootersEvicted();
+            boolean created = index.update(this.getBlockPos(), this.refillState);
+            // New records already contain all looters
+            if (!created && evicted) {
+                index.resetLooters(this.getBlockPos(), this.refillState);
+            } else if (!created && newLooter != null) {
+                index.addLooter(this.getBlockPos(), newLooter);
+            }
+        }
+    }
 
-
-// =-=-=-=-= Unique ChestRefill Methods =-=-=-=-=
     /**
-     * Refills the loot table of the container.
-     * <p>
-     * Only refills if: <ul>
-     *     <li> The container is empty or can be refilled while full </li>
-     *     <li> The container can be filled for the player </li>
-     * </ul>
-     *
-     *
-     * @param player The player opening the container.
-     * @see RandomizableContainerBEMixin_LootRefiller#canRefillFor(Player)
-     * @see RandomizableContainerBEMixin_LootRefiller#unpackLootTable(Player)
+     * Drops the {@link RefillIndex} record of this container, once it no longer exists.
      */
     @Unique
-    private void refillLootTable(@NotNull Player player) {
-        boolean empty = super.isEmpty() || this.refillFull;
-        if (empty && this.canRefillFor(player)) {
-            this.lootedUUIDs.add(player.getStringUUID());
-            // Refilling for player
-            this.setLootTable(this.savedLootTable);
-            this.setLootTableSeed(this.randomizeLootSeed ? player.getRandom().nextLong() : this.savedLootTableSeed);
-            this.lastRefillTime = System.currentTimeMillis();
-            ++refillCounter;
+    private void removeFromRefillIndex() {
+        if (this.refillState != null && this.level instanceof ServerLevel serverLevel) {
+            RefillIndex.get(serverLevel).remove(this.getBlockPos().asLong());
         }
     }
 
     /**
-     * Loads the refilling options from the given compound tag and performs various operations based on the tag contents and configs.
-     *
-     * @param refillTag The compound tag containing the refilling options.
+     * Whether this container was removed because its block was broken or replaced,
+     * rather than because its chunk is unloading. The block is already changed in the chunk
+     * by the time its block entity is removed, while unloading chunks are no longer loaded.
      */
     @Unique
-    private void loadRefillTags(@NotNull CompoundTag refillTag) {
-        // Has been looted already but has saved loot table
-        this.savedLootTable = ResourceKey.create(Registries.LOOT_TABLE, ResourceLocation.parse(refillTag.getString("SavedLootTable")));
-        this.savedLootTableSeed = refillTag.getLong("SavedLootTableSeed");
+    private boolean isDestroyed() {
+        return this.level instanceof ServerLevel && this.level.isLoaded(this.getBlockPos()) &&
+                !this.level.getBlockState(this.getBlockPos()).is(this.getBlockState().getBlock());
+    }
 
-        this.refillCounter = refillTag.getInt("RefillCounter");
-        this.lastRefillTime = refillTag.getLong("LastRefillTime");
+    @Unique
+    private void untrackRefillState() {
+        if (this.refillState != null && this.level instanceof ServerLevel serverLevel) {
+            RefillRegistry.get(serverLevel).untrack(this.getBlockPos(), this.refillState);
+        }
+    }
 
-        ListTag lootedUUIDsTag = (ListTag) refillTag.get("LootedUUIDs");
-        if(lootedUUIDsTag != null) {
-            lootedUUIDsTag.forEach(tag -> this.lootedUUIDs.add(tag.getAsString()));
+    /**
+     * Encodes decoded instanced inventories and drops them from memory.
+     */
+    @Unique
+    private void evictInstancedLoot() {
+        if (this.refillState != null && this.refillState.isDecoded() && this.refillState.getInstancedLoot() != null) {
+            this.refillState.getInstancedLoot().evictAll();
         }
+    }
 
-        // Per loot table customization
-        var modifiers = config.lootModifierMap.get(this.savedLootTable.location().toString());
-        if (modifiers == null) {
-            modifiers = config.lootModifierMap.get(this.savedLootTable.registry().getPath());
+    /**
+     * Generates loot of the saved loot table into an instanced inventory,
+     * the same way {@link RandomizableContainer#unpackLootTable(Player)} does for the shared one.
+     */
+    @Unique
+    private void fillInstancedLoot(@NotNull ServerLevel level, @NotNull InstancedContainer view, @NotNull Player player, long seed) {
+        ResourceKey<LootTable> lootTableKey = this.refillState.getSavedLootTable();
+        LootTable lootTable = level.getServer().reloadableRegistries().getLootTable(lootTableKey);
+        if (player instanceof ServerPlayer serverPlayer) {
+            CriteriaTriggers.GENERATE_LOOT.trigger(serverPlayer, lootTableKey);
         }
 
-        if(modifiers != null) {
-            // This loot table has special values set
-            this.randomizeLootSeed = modifiers.randomizeLootSeed;
-            this.refillFull = modifiers.refillFull;
-            this.allowRelootByDefault = modifiers.allowRelootByDefault;
-            this.maxRefills = modifiers.maxRefills;
-            this.minWaitTime = modifiers.minWaitTime;
+        LootParams params = new LootParams.Builder(level)
+                .withParameter(LootContextParams.ORIGIN, Vec3.atCenterOf(this.getBlockPos()))
+                .withLuck(player.getLuck())
+                .withParameter(LootContextParams.THIS_ENTITY, player)
+                .create(LootContextParamSets.CHEST);
+        lootTable.fill(view, params, seed);
+    }
+
+    /**
+     * Fills empty slots with loot that was generated ahead of time.
+     * <p>
+     * Staged loot of this container is used first, unless seeds are derived from the player.
+     * Otherwise, loot is taken from the pool of the saved loot table, if it has one
+     * and seeds are randomized, but not derived, as pooled loot is neither reproducible nor the original.
+     *
+     * @param player player the container is refilled for.
+     * @param items slots to fill, must all be empty.
+     * @param useStaged whether to use loot staged by {@link #stageRefill(ServerLevel, long)}.
+     * @return <code>true</code> if slots were filled, <code>false</code> if loot should be generated instead.
+     * @see LootPoolCache
+     * @see org.samo_lego.chestrefill.refill.PreRefillScheduler
+     */
+    @Unique
+    private boolean fillPregeneratedLoot(@NotNull Player player, @NotNull NonNullList<ItemStack> items, boolean useStaged) {
+        RefillPolicy policy = this.refillState.getPolicy();
+        ResourceKey<LootTable> lootTableKey = this.refillState.getSavedLootTable();
+        boolean derivedSeed = policy.randomizeLootSeed && policy.deterministicLootSeed;
+        ItemStack[] layout = useStaged ? this.refillState.pollStagedLoot() : null;
+        if (derivedSeed || !(this.level instanceof ServerLevel serverLevel)) {
+            return false;
+        }
+        for (ItemStack stack : items) {
+            if (!stack.isEmpty()) {
+                return false;
+            }
         }
 
-        // Per-chest customization
-        CompoundTag customValues = refillTag.getCompound("CustomValues");
-        if(!customValues.isEmpty()) {
-            this.hadCustomData = true;
-            this.randomizeLootSeed = customValues.getBoolean("RandomizeLootSeed");
-            this.refillFull = customValues.getBoolean("RefillNonEmpty");
-            this.allowRelootByDefault = customValues.getBoolean("AllowReloot");
-            this.maxRefills = customValues.getInt("MaxRefills");
-            this.minWaitTime = customValues.getLong("MinWaitTime");
+        if ((layout == null || layout.length != items.size()) && policy.randomizeLootSeed &&
+                RefillPolicies.get(lootTableKey).lootPoolSize > 0) {
+            layout = LootPoolCache.poll(lootTableKey, items.size(), serverLevel, this.getBlockPos());
+        }
+        if (layout == null || layout.length != items.size()) {
+            return false;
+        }
+        for (int slot = 0; slot < layout.length; ++slot) {
+            items.set(slot, layout[slot]);
         }
+        if (player instanceof ServerPlayer serverPlayer) {
+            CriteriaTriggers.GENERATE_LOOT.trigger(serverPlayer, lootTableKey);
+        }
+        return true;
     }
 
     /**
-     * Saves the refill options to a CompoundTag.
+     * Picks the loot seed of a refill for the player.
+     * <p>
+     * Randomized seeds are either derived from the saved seed, position, refill count and player,
+     * or taken from the player's random generator. Otherwise, the original seed is reused.
      *
-     * @param compoundTag The CompoundTag to save the refill options to.
+     * @param player player the container is refilled for.
+     * @param originalSeed seed to use if seeds aren't randomized.
+     * @return loot seed.
+     * @see SeedMixer#refillSeed(long, long, int, UUID)
      */
     @Unique
-    private void saveRefillTags(@NotNull CompoundTag compoundTag) {
-        // Save only if chest was looted (if there's no more original loot table)
-        CompoundTag refillTag = new CompoundTag();
-
-        refillTag.putString("SavedLootTable", this.savedLootTable.location().toString());
-        refillTag.putLong("SavedLootTableSeed", this.savedLootTableSeed);
-        refillTag.putInt("RefillCounter", this.refillCounter);
-        refillTag.putLong("LastRefillTime", this.lastRefillTime);
-
-        ListTag lootedUUIDsTag = new ListTag();
-        this.lootedUUIDs.forEach(uuid -> lootedUUIDsTag.add(StringTag.valueOf(uuid)));
-        refillTag.put("LootedUUIDs", lootedUUIDsTag);
-
-        // Allows per-chest customization
-        if (this.hadCustomData) {
-            CompoundTag customValues = new CompoundTag();
-
-            customValues.putBoolean("RandomizeLootSeed", this.randomizeLootSeed);
-            customValues.putBoolean("RefillNonEmpty", this.refillFull);
-            customValues.putBoolean("AllowReloot", this.allowRelootByDefault);
-            customValues.putInt("MaxRefills", this.maxRefills);
-            customValues.putLong("MinWaitTime", this.minWaitTime);
-            refillTag.put("CustomValues", customValues);
+    private long refillSeed(@NotNull Player player, long originalSeed) {
+        RefillPolicy policy = this.refillState.getPolicy();
+        if (!policy.randomizeLootSeed) {
+            return originalSeed;
+        }
+        if (policy.deterministicLootSeed) {
+            return SeedMixer.refillSeed(this.refillState.getSavedLootTableSeed(), this.getBlockPos().asLong(),
+                    this.refillState.getRefillCount(player.getUUID()), player.getUUID());
         }
+        return player.getRandom().nextLong();
+    }
 
-        compoundTag.put("ChestRefill", refillTag);
+    /**
+     * Gets current time, measured by the clock of current refill policy.
+     * @return current time in units of the clock.
+     */
+    @Unique
+    private long now() {
+        return this.level != null ? this.refillState.getPolicy().clock.now(this.level) : 0L;
+    }
+
+    /**
+     * Refills the loot table of the container,
+     * if it can be refilled for the player.
+     *
+     * @param player The player opening the container.
+     * @see RandomizableContainerBEMixin_LootRefiller#canRefillFor(Player, InstancedContainer)
+     * @see RandomizableContainerBEMixin_LootRefiller#unpackLootTable(Player)
+     */
+    @Unique
+    private void refillLootTable(@NotNull Player player) {
+        if (this.canRefillFor(player, null)) {
+            // Refilling for player
+            boolean pregenerated = this.fillPregeneratedLoot(player, this.getItems(), true);
+            if (pregenerated) {
+                this.setChanged();
+            } else {
+                this.setLootTable(this.refillState.getSavedLootTable());
+                this.setLootTableSeed(this.refillSeed(player, this.refillState.getSavedLootTableSeed()));
+            }
+            RefillMetrics.refill(this.refillState.getSavedLootTable(), pregenerated);
+            boolean newLooter = this.refillState.markRefilled(player.getUUID(), this.now());
+            this.updateRefillIndex(newLooter ? player.getUUID() : null);
+        }
     }
 }
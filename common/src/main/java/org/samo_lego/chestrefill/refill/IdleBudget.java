@@ -0,0 +1,47 @@
+package org.samo_lego.chestrefill.refill;
+
+import net.minecraft.Util;
+import net.minecraft.server.MinecraftServer;
+import org.jetbrains.annotations.NotNull;
+import org.samo_lego.chestrefill.mixin.MinecraftServerAccessor;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.samo_lego.chestrefill.ChestRefill.config;
+
+/**
+ * Spare time at the end of a server tick, for work that doesn't have to happen right away,
+ * such as pre-generating loot.
+ * <p>
+ * Idle work may use at most half of the time left until the next tick is due,
+ * capped by {@link org.samo_lego.chestrefill.storage.LootConfig#idleWorkTime} milliseconds,
+ * so it never makes the server fall behind.
+ */
+public final class IdleBudget {
+    private IdleBudget() {
+    }
+
+    /**
+     * Gets the time until which idle work can run in the current tick.
+     * @param server server at the end of its tick.
+     * @return deadline in {@link Util#getNanos()} time, or current time if there's no time to spare.
+     */
+    public static long deadline(@NotNull MinecraftServer server) {
+        long now = Util.getNanos();
+        long cap = TimeUnit.MILLISECONDS.toNanos(config.idleWorkTime);
+        long spare = ((MinecraftServerAccessor) server).getNextTickTimeNanos() - now;
+        if (cap <= 0 || spare <= 0) {
+            return now;
+        }
+        return now + Math.min(spare / 2, cap);
+    }
+
+    /**
+     * Whether the given deadline has passed.
+     * @param deadline deadline from {@link #deadline(MinecraftServer)}.
+     * @return <code>true</code> if no more idle work should be done, otherwise <code>false</code>.
+     */
+    public static boolean isOver(long deadline) {
+        return Util.getNanos() - deadline >= 0;
+    }
+}
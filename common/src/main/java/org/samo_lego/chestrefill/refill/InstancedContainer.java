@@ -0,0 +1,63 @@
+package org.samo_lego.chestrefill.refill;
+
+import net.minecraft.world.Container;
+import net.minecraft.world.SimpleContainer;
+import net.minecraft.world.entity.player.Inventory;
+import net.minecraft.world.entity.player.Player;
+import net.minecraft.world.inventory.AbstractContainerMenu;
+import net.minecraft.world.inventory.ChestMenu;
+import net.minecraft.world.inventory.DispenserMenu;
+import net.minecraft.world.inventory.HopperMenu;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Inventory a single player sees when opening a container with instanced loot.
+ * <p>
+ * Changes mark the owning container as changed, so the inventory gets saved with it,
+ * and the inventory can only be used while the owning container could be.
+ * Opening and closing is not forwarded to the owner, as its openers counter only counts
+ * menus of the owner itself, so chest lids stay closed.
+ */
+public class InstancedContainer extends SimpleContainer {
+    private final Container owner;
+
+    public InstancedContainer(@NotNull Container owner) {
+        super(owner.getContainerSize());
+        this.owner = owner;
+    }
+
+    /**
+     * Whether there's a menu for containers of the given size.
+     * @param size number of slots.
+     * @return <code>true</code> if {@link #createMenu(int, Inventory)} supports the size, otherwise <code>false</code>.
+     */
+    public static boolean supportsSize(int size) {
+        return size == 5 || size == 9 || size == 27 || size == 54;
+    }
+
+    /**
+     * Creates a menu for this inventory, matching the size of the owning container.
+     * @param containerId id of the menu.
+     * @param inventory inventory of the player opening the menu.
+     * @return menu showing this inventory.
+     */
+    public AbstractContainerMenu createMenu(int containerId, @NotNull Inventory inventory) {
+        return switch (this.getContainerSize()) {
+            case 5 -> new HopperMenu(containerId, inventory, this);
+            case 9 -> new DispenserMenu(containerId, inventory, this);
+            case 54 -> ChestMenu.sixRows(containerId, inventory, this);
+            default -> ChestMenu.threeRows(containerId, inventory, this);
+        };
+    }
+
+    @Override
+    public boolean stillValid(@NotNull Player player) {
+        return this.owner.stillValid(player);
+    }
+
+    @Override
+    public void setChanged() {
+        super.setChanged();
+        this.owner.setChanged();
+    }
+}
@@ -0,0 +1,142 @@
+package org.samo_lego.chestrefill.refill;
+
+import net.minecraft.core.BlockPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.util.RandomSource;
+import net.minecraft.world.SimpleContainer;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.level.storage.loot.LootParams;
+import net.minecraft.world.level.storage.loot.LootTable;
+import net.minecraft.world.level.storage.loot.parameters.LootContextParamSets;
+import net.minecraft.world.level.storage.loot.parameters.LootContextParams;
+import net.minecraft.world.phys.Vec3;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.samo_lego.chestrefill.storage.RefillPolicies;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.samo_lego.chestrefill.ChestRefill.LOGGER;
+
+/**
+ * Pools of pre-generated loot, per loot table and container size.
+ * <p>
+ * Refills of empty containers take a ready layout of items from the pool instead of
+ * evaluating the loot table while the player waits. Pools are created on first refill of
+ * a loot table with {@link org.samo_lego.chestrefill.storage.LootConfig.DefaultProperties#lootPoolSize}
+ * above 0, and are topped up during spare tick time, see {@link IdleBudget}.
+ * <p>
+ * Loot is generated without a player, at the position of the container that last used the pool,
+ * so pools should only be enabled for loot tables that don't depend on either.
+ * All pools are dropped when datapacks are reloaded, as loot tables might have changed.
+ * <p>
+ * Only accessed from the server thread.
+ */
+public final class LootPoolCache {
+    private static final Map<Key, Pool> POOLS = new LinkedHashMap<>();
+    private static final RandomSource RANDOM = RandomSource.create();
+
+    private LootPoolCache() {
+    }
+
+    /**
+     * Takes a pre-generated layout of items.
+     * Registers the pool, if it doesn't exist yet, so it gets filled in spare tick time.
+     *
+     * @param lootTable loot table to take loot of.
+     * @param size size of the container.
+     * @param level level of the container.
+     * @param pos position of the container.
+     * @return items for each slot of the container, or <code>null</code> if the pool is empty.
+     */
+    @Nullable
+    public static ItemStack[] poll(@NotNull ResourceKey<LootTable> lootTable, int size, @NotNull ServerLevel level, @NotNull BlockPos pos) {
+        Pool pool = POOLS.computeIfAbsent(new Key(lootTable, size), key -> new Pool());
+        pool.dimension = level.dimension();
+        pool.origin = pos.immutable();
+        return pool.layouts.poll();
+    }
+
+    /**
+     * Generates loot for pools that aren't full, one layout per pool at a time, until the deadline.
+     * @param server server to generate loot on.
+     * @param deadline deadline from {@link IdleBudget#deadline(MinecraftServer)}.
+     */
+    public static void refill(@NotNull MinecraftServer server, long deadline) {
+        boolean generated = true;
+        while (generated && !POOLS.isEmpty()) {
+            generated = false;
+            Iterator<Map.Entry<Key, Pool>> iterator = POOLS.entrySet().iterator();
+            while (iterator.hasNext()) {
+                if (IdleBudget.isOver(deadline)) {
+                    return;
+                }
+
+                Map.Entry<Key, Pool> entry = iterator.next();
+                Key key = entry.getKey();
+                Pool pool = entry.getValue();
+                int poolSize = RefillPolicies.get(key.lootTable()).lootPoolSize;
+                ServerLevel level = server.getLevel(pool.dimension);
+                if (poolSize <= 0 || level == null) {
+                    // Disabled since, or level is gone
+                    iterator.remove();
+                    continue;
+                }
+                if (pool.layouts.size() >= poolSize) {
+                    continue;
+                }
+
+                try {
+                    pool.layouts.add(generate(level, key.lootTable(), key.size(), pool.origin, RANDOM.nextLong()));
+                    generated = true;
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Failed to pre-generate loot of {}, disabling its pool: {}", key.lootTable().location(), e.getMessage());
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops all pools, e.g. when datapacks are reloaded or server stops.
+     */
+    public static void clear() {
+        POOLS.clear();
+    }
+
+    /**
+     * Generates loot into an empty container without a player, i.e. with no luck.
+     *
+     * @param level level to generate loot in.
+     * @param lootTableKey loot table to generate loot of.
+     * @param size size of the container.
+     * @param origin position of the container.
+     * @param seed loot seed.
+     * @return items, by slot.
+     */
+    public static ItemStack[] generate(@NotNull ServerLevel level, @NotNull ResourceKey<LootTable> lootTableKey, int size, @NotNull BlockPos origin, long seed) {
+        LootTable lootTable = level.getServer().reloadableRegistries().getLootTable(lootTableKey);
+        LootParams params = new LootParams.Builder(level)
+                .withParameter(LootContextParams.ORIGIN, Vec3.atCenterOf(origin))
+                .create(LootContextParamSets.CHEST);
+
+        SimpleContainer container = new SimpleContainer(size);
+        lootTable.fill(container, params, seed);
+        return container.getItems().toArray(new ItemStack[0]);
+    }
+
+    private record Key(ResourceKey<LootTable> lootTable, int size) {
+    }
+
+    private static final class Pool {
+        private final ArrayDeque<ItemStack[]> layouts = new ArrayDeque<>();
+        private ResourceKey<Level> dimension;
+        private BlockPos origin;
+    }
+}
@@ -0,0 +1,85 @@
+package org.samo_lego.chestrefill.refill;
+
+import net.minecraft.world.entity.player.Player;
+import org.jetbrains.annotations.NotNull;
+import org.samo_lego.chestrefill.PlatformHelper;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.samo_lego.chestrefill.ChestRefill.config;
+
+/**
+ * Caches results of the <code>chestrefill.allowReloot</code> permission check per player.
+ * <p>
+ * Looking the permission up requires building a {@link net.minecraft.commands.CommandSourceStack}
+ * and querying the permission provider, which is way more expensive than the rest of the refill checks.
+ * Entries expire after {@link org.samo_lego.chestrefill.storage.LootConfig#permissionCacheTtl} seconds
+ * and are dropped when the player leaves or the config is reloaded.
+ * <p>
+ * Only accessed from the server thread.
+ */
+public final class PermissionCache {
+    public static final String ALLOW_RELOOT = "chestrefill.allowReloot";
+
+    private static final Map<UUID, Entry> CACHE = new HashMap<>();
+
+    private PermissionCache() {
+    }
+
+    /**
+     * Whether the player has the <code>chestrefill.allowReloot</code> permission.
+     * @param player player to check permission for.
+     * @param defaultPermission value to use if permission isn't set for the player.
+     * @return <code>true</code> if player is allowed to reloot containers, otherwise <code>false</code>.
+     */
+    public static boolean canReloot(@NotNull Player player, boolean defaultPermission) {
+        long ttl = TimeUnit.SECONDS.toNanos(config.permissionCacheTtl);
+        if (ttl <= 0) {
+            return PlatformHelper.hasPermission(player.createCommandSourceStack(), ALLOW_RELOOT, defaultPermission);
+        }
+
+        long now = System.nanoTime();
+        Entry entry = CACHE.get(player.getUUID());
+        if (entry == null || now - entry.created > ttl) {
+            entry = new Entry(now);
+            CACHE.put(player.getUUID(), entry);
+        }
+
+        // Results are cached separately for each default value, as loot tables can use different defaults
+        int bit = defaultPermission ? 2 : 1;
+        if ((entry.known & bit) == 0) {
+            boolean allowed = PlatformHelper.hasPermission(player.createCommandSourceStack(), ALLOW_RELOOT, defaultPermission);
+            entry.known |= bit;
+            if (allowed) {
+                entry.allowed |= bit;
+            }
+        }
+
+        return (entry.allowed & bit) != 0;
+    }
+
+    /**
+     * Drops cached permission of the given player.
+     * Should be called when player's permissions change.
+     * @param player uuid of the player.
+     */
+    public static void invalidate(@NotNull UUID player) {
+        CACHE.remove(player);
+    }
+
+    public static void invalidateAll() {
+        CACHE.clear();
+    }
+
+    private static final class Entry {
+        private final long created;
+        private byte known, allowed;
+
+        private Entry(long created) {
+            this.created = created;
+        }
+    }
+}
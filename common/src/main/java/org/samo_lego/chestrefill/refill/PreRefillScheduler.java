@@ -0,0 +1,141 @@
+package org.samo_lego.chestrefill.refill;
+
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.SectionPos;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.util.RandomSource;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.samo_lego.chestrefill.storage.RefillIndex;
+import org.samo_lego.chestrefill.storage.RefillPolicies;
+import org.samo_lego.chestrefill.storage.RefillPolicy;
+import org.samo_lego.chestrefill.storage.RefillRegistry;
+import org.samo_lego.chestrefill.storage.RefillState;
+
+import java.util.List;
+
+import static org.samo_lego.chestrefill.ChestRefill.config;
+
+/**
+ * Generates loot of upcoming refills of containers near players in spare tick time,
+ * so the loot tables don't have to be evaluated when a player opens the container.
+ * <p>
+ * Containers within {@link org.samo_lego.chestrefill.storage.LootConfig#preRefillRadius} blocks of a player,
+ * which are empty and due for a refill, get their loot staged in their {@link RefillState}.
+ * At most {@link org.samo_lego.chestrefill.storage.LootConfig#maxPreRefillsPerTick} containers are staged per tick,
+ * starting at a different player each tick. Staged loot is dropped when datapacks are reloaded.
+ * <p>
+ * States that weren't decoded yet are checked against their {@link RefillIndex} record first,
+ * so only containers that will actually be staged get decoded.
+ * <p>
+ * Only accessed from the server thread.
+ */
+public final class PreRefillScheduler {
+    private static final RandomSource RANDOM = RandomSource.create();
+    private static int playerCursor;
+
+    private PreRefillScheduler() {
+    }
+
+    /**
+     * Stages refills of containers near players until the deadline or the per-tick limit is reached.
+     * @param server server to stage refills on.
+     * @param deadline deadline from {@link IdleBudget#deadline(MinecraftServer)}.
+     */
+    public static void tick(@NotNull MinecraftServer server, long deadline) {
+        int radius = config.preRefillRadius;
+        int limit = config.maxPreRefillsPerTick;
+        List<ServerPlayer> players = server.getPlayerList().getPlayers();
+        if (radius <= 0 || limit <= 0 || players.isEmpty()) {
+            return;
+        }
+
+        int start = Math.floorMod(playerCursor++, players.size());
+        for (int i = 0; i < players.size() && limit > 0 && !IdleBudget.isOver(deadline); ++i) {
+            limit -= stageAround(players.get((start + i) % players.size()), radius, limit, deadline);
+        }
+    }
+
+    private static int stageAround(ServerPlayer player, int radius, int limit, long deadline) {
+        ServerLevel level = player.serverLevel();
+        RefillRegistry registry = RefillRegistry.get(level);
+        if (registry.size() == 0) {
+            return 0;
+        }
+
+        RefillIndex index = RefillIndex.get(level);
+        RefillPolicies.Snapshot snapshot = RefillPolicies.current();
+        long now = snapshot.clock.now(level);
+        BlockPos center = player.blockPosition();
+        long radiusSqr = (long) radius * radius;
+        int staged = 0;
+        for (int chunkX = SectionPos.blockToSectionCoord(center.getX() - radius); chunkX <= SectionPos.blockToSectionCoord(center.getX() + radius); ++chunkX) {
+            for (int chunkZ = SectionPos.blockToSectionCoord(center.getZ() - radius); chunkZ <= SectionPos.blockToSectionCoord(center.getZ() + radius); ++chunkZ) {
+                LongIterator positions = registry.getPositionsInChunk(chunkX, chunkZ).iterator();
+                while (positions.hasNext()) {
+                    long packedPos = positions.nextLong();
+                    long dx = BlockPos.getX(packedPos) - center.getX();
+                    long dy = BlockPos.getY(packedPos) - center.getY();
+                    long dz = BlockPos.getZ(packedPos) - center.getZ();
+                    if (dx * dx + dy * dy + dz * dz > radiusSqr) {
+                        continue;
+                    }
+
+                    RefillState state = registry.get(packedPos);
+                    BlockPos pos = BlockPos.of(packedPos);
+                    if (state == null || !isStageable(state, state.isDecoded() ? null : index.getRecord(pos), snapshot, now)) {
+                        continue;
+                    }
+
+                    if (level.isLoaded(pos) && level.getBlockEntity(pos) instanceof PreRefillable container &&
+                            container.stageRefill(level, RANDOM.nextLong()) && ++staged >= limit) {
+                        return staged;
+                    }
+                    if (IdleBudget.isOver(deadline)) {
+                        return staged;
+                    }
+                }
+            }
+        }
+        return staged;
+    }
+
+    /**
+     * Whether the container might get its refill staged, checked without decoding the state if possible.
+     *
+     * @param state refill state of the container.
+     * @param record index record of the container, <code>null</code> to check the state itself.
+     * @param snapshot current policies.
+     * @param now current time, measured by the clock of the snapshot.
+     * @return <code>true</code> if the container is due for a refill and has no staged loot yet.
+     */
+    private static boolean isStageable(RefillState state, @Nullable RefillIndex.Record record, RefillPolicies.Snapshot snapshot, long now) {
+        if (record != null) {
+            // Undecoded states have nothing staged
+            return record.isReady(snapshot, now) && canStage(snapshot.get(record.lootTableKey()));
+        }
+        return !state.hasStagedLoot() && state.isDueForRefill(now) && canStage(state.getPolicy());
+    }
+
+    /**
+     * Whether refills under the policy can use staged loot.
+     * Instanced loot is generated per player and derived seeds depend on the player, so neither can.
+     *
+     * @param policy policy of the container.
+     * @return <code>true</code> if loot of the policy can be staged.
+     */
+    public static boolean canStage(@NotNull RefillPolicy policy) {
+        return !policy.instancedLoot && !(policy.randomizeLootSeed && policy.deterministicLootSeed);
+    }
+
+    /**
+     * Drops all staged loot, e.g. when datapacks are reloaded.
+     */
+    public static void clearStaged() {
+        RefillRegistry.getAll().values().forEach(registry ->
+                registry.getStates().values().forEach(RefillState::pollStagedLoot));
+    }
+}
@@ -0,0 +1,22 @@
+package org.samo_lego.chestrefill.refill;
+
+import net.minecraft.server.level.ServerLevel;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Container that can generate loot of its next refill ahead of time.
+ * Implemented by all refillable containers.
+ *
+ * @see PreRefillScheduler
+ */
+public interface PreRefillable {
+    /**
+     * Generates loot of the next refill and keeps it aside, without putting it into the container.
+     * The refill itself still runs all checks once a player opens the container.
+     *
+     * @param level level of the container.
+     * @param randomSeed seed to use if loot seeds are randomized.
+     * @return <code>true</code> if loot was generated, <code>false</code> if container can't be refilled ahead of time.
+     */
+    boolean stageRefill(@NotNull ServerLevel level, long randomSeed);
+}
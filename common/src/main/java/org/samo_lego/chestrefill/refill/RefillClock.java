@@ -0,0 +1,81 @@
+package org.samo_lego.chestrefill.refill;
+
+import net.minecraft.world.level.Level;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Clock used to measure time between refills.
+ * <p>
+ * Refill times are stored in units of the clock that was used,
+ * so cooldowns can be checked without converting them on every container open.
+ */
+public enum RefillClock {
+    /**
+     * System time in milliseconds. Persists across restarts, but follows wall-clock jumps.
+     */
+    WALL_CLOCK("wall_clock", 1000, true) {
+        @Override
+        public long now(@NotNull Level level) {
+            return System.currentTimeMillis();
+        }
+    },
+    /**
+     * Game time of the level, in ticks. Persists across restarts and only advances while the level is ticking.
+     */
+    GAME_TIME("game_time", 20, true) {
+        @Override
+        public long now(@NotNull Level level) {
+            return level.getGameTime();
+        }
+    },
+    /**
+     * Ticks since server start. Cheapest, but starts from 0 after each restart,
+     * so it can't measure cooldowns or looter expiry.
+     */
+    SERVER_TICKS("server_ticks", 20, false) {
+        @Override
+        public long now(@NotNull Level level) {
+            var server = level.getServer();
+            return server != null ? server.getTickCount() : 0L;
+        }
+    };
+
+    public final String id;
+    /**
+     * How many clock units make up a second.
+     */
+    public final long unitsPerSecond;
+    /**
+     * Whether times measured before a restart can be compared to times measured after it.
+     */
+    public final boolean persistent;
+
+    RefillClock(String id, long unitsPerSecond, boolean persistent) {
+        this.id = id;
+        this.unitsPerSecond = unitsPerSecond;
+        this.persistent = persistent;
+    }
+
+    /**
+     * Gets current time.
+     * @param level level of the container.
+     * @return current time in units of this clock.
+     */
+    public abstract long now(@NotNull Level level);
+
+    /**
+     * Finds a clock by its config id.
+     * @param id id of the clock.
+     * @return clock with the given id, or <code>null</code> if there's none.
+     */
+    @Nullable
+    public static RefillClock byId(String id) {
+        for (RefillClock clock : values()) {
+            if (clock.id.equals(id)) {
+                return clock;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,88 @@
+package org.samo_lego.chestrefill.refill;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.samo_lego.chestrefill.storage.RefillState;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Checks a container has to pass before it is refilled for a player,
+ * in order in which they are evaluated (cheapest first).
+ * <p>
+ * Each gate counts how many refills it has rejected.
+ */
+public enum RefillGate {
+    /**
+     * Container has reached max refills.
+     */
+    COUNTER,
+    /**
+     * Not enough time has passed since the last refill.
+     */
+    COOLDOWN,
+    /**
+     * Container still has items and can't be refilled while non-empty.
+     */
+    EMPTINESS,
+    /**
+     * Player has already looted the container and is not allowed to reloot it.
+     */
+    PERMISSION;
+
+    private final LongAdder rejections = new LongAdder();
+
+    public void reject() {
+        this.rejections.increment();
+    }
+
+    public long getRejections() {
+        return this.rejections.sum();
+    }
+
+    /**
+     * Runs the refill checks in order and stops at the first one that fails.
+     * <p>
+     * Checks, in order, whether the storage can still be refilled,
+     * whether enough time has passed since last refill,
+     * whether the storage is empty (or can be refilled while full)
+     * and whether player hasn't looted it yet or is allowed to reloot it.
+     * Rejections aren't counted here, see {@link #reject()}.
+     *
+     * @param state refill state of the container.
+     * @param player uuid of the player to check refilling for.
+     * @param now current time, measured by the clock of the policy.
+     * @param isEmpty whether the inventory to refill is empty, only called if needed.
+     * @param canReloot whether the player may loot the container again, only called if needed.
+     * @return the gate that rejected the refill, or <code>null</code> if all checks succeed.
+     * @see RefillState#canStillRefill(UUID)
+     * @see RefillState#hasEnoughTimePassed(UUID, long)
+     * @see RefillState#hasLooted(UUID, long)
+     */
+    @Nullable
+    public static RefillGate findRejecting(@NotNull RefillState state, @NotNull UUID player, long now,
+                                           @NotNull BooleanSupplier isEmpty, @NotNull BooleanSupplier canReloot) {
+        if (!state.canStillRefill(player)) {
+            return COUNTER;
+        }
+        if (!state.hasEnoughTimePassed(player, now)) {
+            return COOLDOWN;
+        }
+        // Scans all slots, so it goes after the field checks
+        if (!state.getPolicy().refillFull && !isEmpty.getAsBoolean()) {
+            return EMPTINESS;
+        }
+        if (state.hasLooted(player, now) && !canReloot.getAsBoolean()) {
+            return PERMISSION;
+        }
+        return null;
+    }
+
+    public static void resetAll() {
+        for (RefillGate gate : values()) {
+            gate.rejections.reset();
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package org.samo_lego.chestrefill.refill;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.Util;
+import net.minecraft.core.BlockPos;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.Tag;
+import net.minecraft.nbt.visitors.CollectFields;
+import net.minecraft.nbt.visitors.FieldSelector;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.dimension.DimensionType;
+import net.minecraft.world.level.storage.LevelResource;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.samo_lego.chestrefill.storage.LootTableKeys;
+import org.samo_lego.chestrefill.storage.RefillIndex;
+import org.samo_lego.chestrefill.storage.RefillPolicies;
+import org.samo_lego.chestrefill.storage.RefillPolicy;
+import org.samo_lego.chestrefill.storage.RefillRegistry;
+import org.samo_lego.chestrefill.storage.RefillState;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.samo_lego.chestrefill.ChestRefill.LOGGER;
+
+/**
+ * Lists refill states of containers in an area.
+ * <p>
+ * Loaded containers are taken from the {@link RefillRegistry}, using their {@link RefillIndex} records
+ * if their state wasn't decoded yet, so the query doesn't decode every container in the area on the server thread.
+ * Unloaded chunks are scanned from region files by the chunk IO worker, collecting only the <code>block_entities</code> list,
+ * and their <code>ChestRefill</code> tags are decoded on the background executor.
+ * Chunks that get loaded while the query runs are taken from memory instead.
+ * At most {@link #MAX_SCANS_IN_FLIGHT} chunks are scanned at once, nearest to the center first,
+ * so big areas don't flood the IO worker that also serves chunk loading,
+ * and chunks of missing region files are skipped without asking it at all (which would also create empty region files).
+ * Scanned chunks are queued and merged in batches on the server thread, at most one merge task is scheduled at a time.
+ * <p>
+ * Results are kept per command source, so they can be paged through, also while the query is still running.
+ */
+public final class RefillQuery {
+    public static final int PAGE_SIZE = 10;
+    private static final int MAX_SCANS_IN_FLIGHT = 32;
+    /**
+     * Command sources without an entity, e.g. console.
+     */
+    private static final UUID SERVER_SOURCE = new UUID(0L, 0L);
+
+    private static final Map<UUID, RefillQuery> QUERIES = new HashMap<>();
+
+    private final ServerLevel level;
+    private final BlockPos center;
+    private final int minChunkX, minChunkZ, maxChunkX, maxChunkZ;
+    private final int minX, minZ, maxX, maxZ;
+    private final RefillPolicies.Snapshot snapshot;
+    private final long now;
+    private final Path regionFolder;
+    /**
+     * Chunks that were loaded when the query started, filled before the scan starts and only read afterwards.
+     */
+    private final LongOpenHashSet loadedChunks = new LongOpenHashSet();
+    private final Map<Long, Boolean> regionFiles = new ConcurrentHashMap<>();
+
+    /**
+     * Chunk indices, ordered by distance from the center, set before the scan starts.
+     */
+    private int[] chunkOrder;
+    private final Queue<ScannedChunk> scannedChunks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mergeScheduled = new AtomicBoolean();
+
+    private final Long2ObjectOpenHashMap<Result> results = new Long2ObjectOpenHashMap<>();
+    private final AtomicInteger nextChunk = new AtomicInteger();
+    private final AtomicInteger pendingChunks;
+    private volatile boolean cancelled;
+    private boolean finished;
+    /**
+     * Results sorted by distance, dropped whenever new results are merged.
+     */
+    @Nullable
+    private List<Result> sorted;
+
+    private RefillQuery(ServerLevel level, BlockPos center, int minX, int minZ, int maxX, int maxZ) {
+        this.level = level;
+        this.center = center;
+        this.minX = minX;
+        this.minZ = minZ;
+        this.maxX = maxX;
+        this.maxZ = maxZ;
+        this.minChunkX = minX >> 4;
+        this.minChunkZ = minZ >> 4;
+        this.maxChunkX = maxX >> 4;
+        this.maxChunkZ = maxZ >> 4;
+        this.pendingChunks = new AtomicInteger(this.chunkCount());
+        this.snapshot = RefillPolicies.current();
+        this.now = this.snapshot.clock.now(level);
+        this.regionFolder = DimensionType.getStorageFolder(level.dimension(), level.getServer().getWorldPath(LevelResource.ROOT)).resolve("region");
+    }
+
+    /**
+     * Starts a query of all containers in the given block column area.
+     * Replaces (and cancels) the previous query of the source.
+     *
+     * @param source uuid of the command source entity, or <code>null</code> for console.
+     * @param level level to query.
+     * @param center position to sort results by distance from.
+     * @param from first corner of the area.
+     * @param to second corner of the area.
+     * @param onPageFilled called on server thread whenever scanned chunks fill another page of results.
+     * @param onFinished called on server thread once all chunks are scanned.
+     * @return the started query.
+     */
+    public static RefillQuery start(@Nullable UUID source, @NotNull ServerLevel level, @NotNull BlockPos center,
+                                    @NotNull BlockPos from, @NotNull BlockPos to,
+                                    @NotNull Consumer<RefillQuery> onPageFilled, @NotNull Consumer<RefillQuery> onFinished) {
+        RefillQuery query = new RefillQuery(level, center,
+                Math.min(from.getX(), to.getX()), Math.min(from.getZ(), to.getZ()),
+                Math.max(from.getX(), to.getX()), Math.max(from.getZ(), to.getZ()));
+
+        RefillQuery previous = QUERIES.put(source != null ? source : SERVER_SOURCE, query);
+        if (previous != null) {
+            previous.cancelled = true;
+        }
+
+        query.collectLoaded();
+        query.scanUnloaded(onPageFilled, onFinished);
+        return query;
+    }
+
+    /**
+     * Gets the last query of the source.
+     * @param source uuid of the command source entity, or <code>null</code> for console.
+     * @return query, or <code>null</code> if source hasn't run any.
+     */
+    @Nullable
+    public static RefillQuery get(@Nullable UUID source) {
+        return QUERIES.get(source != null ? source : SERVER_SOURCE);
+    }
+
+    /**
+     * Cancels and forgets the query of the source.
+     * @param source uuid of the command source entity.
+     */
+    public static void discard(@NotNull UUID source) {
+        RefillQuery query = QUERIES.remove(source);
+        if (query != null) {
+            query.cancelled = true;
+        }
+    }
+
+    public static void discardAll() {
+        QUERIES.values().forEach(query -> query.cancelled = true);
+        QUERIES.clear();
+    }
+
+    public int chunkCount() {
+        return (this.maxChunkX - this.minChunkX + 1) * (this.maxChunkZ - this.minChunkZ + 1);
+    }
+
+    public boolean isFinished() {
+        return this.finished;
+    }
+
+    /**
+     * Gets the number of chunks that are done, scanned or skipped.
+     * @return number of chunks whose results are known.
+     */
+    public int completedChunks() {
+        return this.chunkCount() - this.pendingChunks.get();
+    }
+
+    public int size() {
+        return this.results.size();
+    }
+
+    public int pageCount() {
+        return Math.max(1, (this.size() + PAGE_SIZE - 1) / PAGE_SIZE);
+    }
+
+    /**
+     * Gets a page of results, sorted by distance from the query center.
+     * While the query runs, only results found so far are sorted, later ones might come before them.
+     * @param page page number, starting at 1.
+     * @return results on the page.
+     */
+    public List<Result> getPage(int page) {
+        if (this.sorted == null) {
+            List<Result> sorted = new ArrayList<>(this.results.values());
+            sorted.sort(Comparator.comparingDouble(result -> result.pos().distSqr(this.center)));
+            this.sorted = sorted;
+        }
+        int from = Math.min((page - 1) * PAGE_SIZE, this.sorted.size());
+        return this.sorted.subList(from, Math.min(from + PAGE_SIZE, this.sorted.size()));
+    }
+
+    private boolean isInArea(BlockPos pos) {
+        return pos.getX() >= this.minX && pos.getX() <= this.maxX && pos.getZ() >= this.minZ && pos.getZ() <= this.maxZ;
+    }
+
+    private void collectLoaded() {
+        for (int chunkX = this.minChunkX; chunkX <= this.maxChunkX; ++chunkX) {
+            for (int chunkZ = this.minChunkZ; chunkZ <= this.maxChunkZ; ++chunkZ) {
+                if (this.level.hasChunk(chunkX, chunkZ)) {
+                    this.loadedChunks.add(ChunkPos.asLong(chunkX, chunkZ));
+                    this.collectLoaded(chunkX, chunkZ);
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects results of loaded containers in the chunk.
+     * States that weren't decoded yet are read from their index record instead.
+     */
+    private void collectLoaded(int chunkX, int chunkZ) {
+        RefillRegistry registry = RefillRegistry.get(this.level);
+        RefillIndex index = RefillIndex.get(this.level);
+        LongIterator positions = registry.getPositionsInChunk(chunkX, chunkZ).iterator();
+        while (positions.hasNext()) {
+            long packedPos = positions.nextLong();
+            BlockPos pos = BlockPos.of(packedPos);
+            RefillState state = registry.get(packedPos);
+            if (state == null || !this.isInArea(pos)) {
+                continue;
+            }
+
+            RefillIndex.Record record = state.isDecoded() ? null : index.getRecord(pos);
+            this.results.put(packedPos, record != null ?
+                    Result.of(record, this.snapshot, this.now, index.countLooters(pos), true) :
+                    Result.of(pos, state, this.snapshot, this.now, true));
+        }
+    }
+
+    private void scanUnloaded(Consumer<RefillQuery> onPageFilled, Consumer<RefillQuery> onFinished) {
+        // Checking region files touches the disk, keep it off the server thread
+        Util.backgroundExecutor().execute(() -> {
+            this.chunkOrder = this.orderChunks();
+            for (int i = 0; i < MAX_SCANS_IN_FLIGHT; ++i) {
+                this.scanNext(onPageFilled, onFinished);
+            }
+        });
+    }
+
+    /**
+     * Orders chunks of the area by distance from the center, so nearest results come in first.
+     * @return chunk indices, row by row from the min corner.
+     */
+    private int[] orderChunks() {
+        int width = this.maxChunkX - this.minChunkX + 1;
+        int centerX = this.center.getX() >> 4;
+        int centerZ = this.center.getZ() >> 4;
+        // Squared distance in the upper 32 bits, sorting keeps the index in the lower ones
+        long[] keys = new long[this.chunkCount()];
+        for (int index = 0; index < keys.length; ++index) {
+            long dx = this.minChunkX + index % width - centerX;
+            long dz = this.minChunkZ + index / width - centerZ;
+            keys[index] = ((dx * dx + dz * dz) << 32) | index;
+        }
+        Arrays.sort(keys);
+
+        int[] order = new int[keys.length];
+        for (int i = 0; i < keys.length; ++i) {
+            order[i] = (int) keys[i];
+        }
+        return order;
+    }
+
+    /**
+     * Scans the next chunk of the area that has a region file, if any is left.
+     * Called from the background executor at first, and then from the completion of previous scans.
+     */
+    private void scanNext(Consumer<RefillQuery> onPageFilled, Consumer<RefillQuery> onFinished) {
+        int width = this.maxChunkX - this.minChunkX + 1;
+        while (true) {
+            int next = this.nextChunk.getAndIncrement();
+            if (next >= this.chunkCount()) {
+                return;
+            }
+            if (this.cancelled) {
+                // Skip remaining chunks at once, nobody is waiting for the result
+                this.nextChunk.set(this.chunkCount());
+                return;
+            }
+
+            int index = this.chunkOrder[next];
+            ChunkPos chunkPos = new ChunkPos(this.minChunkX + index % width, this.minChunkZ + index / width);
+            // Loaded chunks were already collected from memory
+            if (this.loadedChunks.contains(chunkPos.toLong()) || !this.hasRegionFile(chunkPos)) {
+                this.completeChunk(chunkPos, null, onPageFilled, onFinished);
+                continue;
+            }
+
+            CollectFields blockEntities = new CollectFields(new FieldSelector(ListTag.TYPE, "block_entities"));
+            this.level.getChunkSource().chunkMap.chunkScanner().scanChunk(chunkPos, blockEntities)
+                    .thenApplyAsync(unused -> this.decode(blockEntities.getResult()), Util.backgroundExecutor())
+                    .whenComplete((decoded, error) -> {
+                        if (error != null) {
+                            LOGGER.warn("Failed to scan chunk {} for refill states: {}", chunkPos, error.getMessage());
+                        }
+                        this.completeChunk(chunkPos, decoded, onPageFilled, onFinished);
+                        this.scanNext(onPageFilled, onFinished);
+                    });
+            return;
+        }
+    }
+
+    private boolean hasRegionFile(ChunkPos chunkPos) {
+        long region = ChunkPos.asLong(chunkPos.getRegionX(), chunkPos.getRegionZ());
+        return this.regionFiles.computeIfAbsent(region, r -> Files.exists(this.regionFolder.resolve(
+                "r." + chunkPos.getRegionX() + "." + chunkPos.getRegionZ() + ".mca")));
+    }
+
+    /**
+     * Queues decoded results of a scanned chunk for the server thread,
+     * and schedules a merge of the queue unless one is scheduled already.
+     *
+     * @param decoded results of the chunk, <code>null</code> if chunk wasn't scanned.
+     */
+    private void completeChunk(ChunkPos chunkPos, @Nullable List<Result> decoded,
+                               Consumer<RefillQuery> onPageFilled, Consumer<RefillQuery> onFinished) {
+        // Empty results are merged too, the chunk might have been loaded in the meantime
+        if (decoded != null) {
+            this.scannedChunks.add(new ScannedChunk(chunkPos, decoded));
+        }
+        // Queued before counted as done, so a merge that sees no pending chunks also sees all results
+        boolean last = this.pendingChunks.decrementAndGet() == 0;
+        if (!this.cancelled && (decoded != null || last) && this.mergeScheduled.compareAndSet(false, true)) {
+            this.level.getServer().execute(() -> this.mergeScanned(onPageFilled, onFinished));
+        }
+    }
+
+    /**
+     * Merges all queued chunks, finishes the query once all chunks are done.
+     */
+    private void mergeScanned(Consumer<RefillQuery> onPageFilled, Consumer<RefillQuery> onFinished) {
+        // Chunks queued from now on schedule another merge
+        this.mergeScheduled.set(false);
+        boolean done = this.pendingChunks.get() == 0;
+        if (this.cancelled || this.finished) {
+            return;
+        }
+
+        int pages = this.size() / PAGE_SIZE;
+        ScannedChunk chunk;
+        while ((chunk = this.scannedChunks.poll()) != null) {
+            this.merge(chunk.pos(), chunk.results());
+        }
+
+        if (done) {
+            this.finished = true;
+            onFinished.accept(this);
+        } else if (this.size() / PAGE_SIZE > pages) {
+            onPageFilled.accept(this);
+        }
+    }
+
+    /**
+     * Decodes refill states from the collected <code>block_entities</code> list of a chunk.
+     * @param collected tag collected by the scan, <code>null</code> if chunk doesn't exist.
+     * @return results of containers in the area.
+     */
+    private List<Result> decode(@Nullable Tag collected) {
+        if (!(collected instanceof CompoundTag chunkTag)) {
+            return Collections.emptyList();
+        }
+
+        List<Result> decoded = new ArrayList<>();
+        for (Tag tag : chunkTag.getList("block_entities", Tag.TAG_COMPOUND)) {
+            CompoundTag blockEntity = (CompoundTag) tag;
+            CompoundTag refillTag = blockEntity.getCompound(RefillState.TAG_NAME);
+            if (refillTag.isEmpty()) {
+                continue;
+            }
+
+            BlockPos pos = new BlockPos(blockEntity.getInt("x"), blockEntity.getInt("y"), blockEntity.getInt("z"));
+            if (this.isInArea(pos)) {
+                RefillState state = new RefillState();
+                state.load(refillTag);
+                decoded.add(Result.of(pos, state, this.snapshot, this.now, false));
+            }
+        }
+        return decoded;
+    }
+
+    private void merge(ChunkPos chunkPos, List<Result> decoded) {
+        this.sorted = null;
+        if (this.level.hasChunk(chunkPos.x, chunkPos.z)) {
+            // Loaded in the meantime, in memory state is newer than the one in region file
+            this.collectLoaded(chunkPos.x, chunkPos.z);
+            return;
+        }
+        decoded.forEach(result -> this.results.putIfAbsent(result.pos().asLong(), result));
+    }
+
+    /**
+     * Decoded results of a scanned chunk, waiting to be merged on the server thread.
+     */
+    private record ScannedChunk(ChunkPos pos, List<Result> results) {
+    }
+
+    /**
+     * Refill state of a single container.
+     *
+     * @param pos position of the container.
+     * @param lootTable id of the saved loot table.
+     * @param refillCounter number of refills so far.
+     * @param maxRefills max refills of the container, -1 if unlimited.
+     * @param cooldownRemaining seconds until the container can be refilled, 0 if it already can.
+     * @param looters number of players that looted the container.
+     * @param perPlayer whether refills and cooldowns are counted per player,
+     *                  in which case <code>maxRefills</code> applies to each player and the container itself has no cooldown.
+     * @param loaded whether the container was loaded at the time of the query.
+     */
+    public record Result(BlockPos pos, String lootTable, int refillCounter, int maxRefills,
+                         long cooldownRemaining, int looters, boolean perPlayer, boolean loaded) {
+
+        private static Result of(BlockPos pos, RefillState state, RefillPolicies.Snapshot snapshot, long now, boolean loaded) {
+            return of(pos, state.getSavedLootTable() != null ? LootTableKeys.id(state.getSavedLootTable()) : "",
+                    state.getRefillCounter(), state.getLastRefillTime(), state.getLastRefillClock(),
+                    state.resolvePolicy(snapshot), state.getLootedPlayers().size(), now, loaded);
+        }
+
+        private static Result of(RefillIndex.Record record, RefillPolicies.Snapshot snapshot, long now, int looters, boolean loaded) {
+            return of(record.blockPos(), record.lootTable(), record.refillCounter(), record.lastRefillTime(), record.clock(),
+                    record.policy(snapshot), looters, now, loaded);
+        }
+
+        private static Result of(BlockPos pos, String lootTable, int refillCounter, long lastRefillTime, RefillClock lastRefillClock,
+                                 RefillPolicy policy, int looters, long now, boolean loaded) {
+            long cooldownRemaining = 0L;
+            // Times of a different clock can't be compared, cooldown counts as over then
+            if (!policy.perPlayerRefills && lastRefillClock == policy.clock && !policy.hasCooldownPassed(lastRefillTime, now)) {
+                long remaining = policy.cooldown - (now - lastRefillTime);
+                cooldownRemaining = (remaining + policy.clock.unitsPerSecond - 1) / policy.clock.unitsPerSecond;
+            }
+
+            return new Result(pos,
+                    lootTable.isEmpty() ? "?" : lootTable,
+                    refillCounter,
+                    policy.maxRefills,
+                    cooldownRemaining,
+                    looters,
+                    policy.perPlayerRefills,
+                    loaded);
+        }
+    }
+}
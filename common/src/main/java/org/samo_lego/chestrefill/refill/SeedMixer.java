@@ -0,0 +1,68 @@
+package org.samo_lego.chestrefill.refill;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.UUID;
+
+/**
+ * Stateless derivation of loot seeds.
+ * <p>
+ * Inputs are absorbed one by one with the SplitMix64 finalizer, so the same inputs always give the same seed,
+ * no random generator state is consumed and seeds can be computed ahead of time.
+ */
+public final class SeedMixer {
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private SeedMixer() {
+    }
+
+    /**
+     * Derives the seed of a refill.
+     *
+     * @param savedSeed seed of the original loot.
+     * @param packedPos packed position of the container.
+     * @param refillCounter number of refills before this one.
+     * @param player uuid of the player the container is refilled for.
+     * @return non-zero seed, as zero makes loot tables pick a random one.
+     */
+    public static long refillSeed(long savedSeed, long packedPos, int refillCounter, @NotNull UUID player) {
+        long hash = absorb(savedSeed, packedPos);
+        hash = absorb(hash, refillCounter);
+        hash = absorb(hash, player.getMostSignificantBits());
+        hash = absorb(hash, player.getLeastSignificantBits());
+        return nonZero(hash);
+    }
+
+    /**
+     * Derives the seed of a player's instanced loot, so each player gets different, but repeatable loot.
+     * The position is mixed in as well, as many containers of the same loot table share the saved seed (often 0).
+     *
+     * @param savedSeed seed of the original loot.
+     * @param packedPos packed position of the container.
+     * @param player uuid of the player.
+     * @return non-zero seed, as zero makes loot tables pick a random one.
+     */
+    public static long instanceSeed(long savedSeed, long packedPos, @NotNull UUID player) {
+        long hash = absorb(savedSeed, packedPos);
+        hash = absorb(hash, player.getMostSignificantBits());
+        hash = absorb(hash, player.getLeastSignificantBits());
+        return nonZero(hash);
+    }
+
+    /**
+     * SplitMix64 finalizer.
+     */
+    public static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static long absorb(long hash, long value) {
+        return mix(hash ^ (value + GOLDEN_GAMMA));
+    }
+
+    private static long nonZero(long seed) {
+        return seed != 0L ? seed : GOLDEN_GAMMA;
+    }
+}
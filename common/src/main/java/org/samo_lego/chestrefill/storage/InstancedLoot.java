@@ -0,0 +1,200 @@
+package org.samo_lego.chestrefill.storage;
+
+import net.minecraft.core.HolderLookup;
+import net.minecraft.core.NonNullList;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.Tag;
+import net.minecraft.world.Container;
+import net.minecraft.world.ContainerHelper;
+import net.minecraft.world.item.ItemStack;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.samo_lego.chestrefill.refill.InstancedContainer;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Per-player inventories of a container with instanced loot.
+ * <p>
+ * Inventories are kept encoded as item lists, the same way they're saved in the <code>Instances</code>
+ * list of the <code>ChestRefill</code> tag. An inventory is only decoded into an {@link InstancedContainer}
+ * once its player opens the container, and is encoded again and dropped from memory
+ * when the player leaves or the container is unloaded.
+ * <p>
+ * Only accessed from the server thread.
+ */
+public final class InstancedLoot {
+    /**
+     * Containers with decoded inventories, by player. Used to evict the inventories when player leaves.
+     */
+    private static final Map<UUID, Set<InstancedLoot>> DECODED = new HashMap<>();
+
+    private final Map<UUID, ListTag> encoded = new HashMap<>();
+    private final Map<UUID, InstancedContainer> decoded = new HashMap<>();
+    /**
+     * Registries the decoded inventories were decoded with, used to encode them again.
+     */
+    @Nullable
+    private HolderLookup.Provider registries;
+    /**
+     * Whether any inventory was decoded since the last {@link #toTag()}.
+     */
+    private boolean decodedSinceSave;
+
+    public boolean isEmpty() {
+        return this.encoded.isEmpty() && this.decoded.isEmpty();
+    }
+
+    /**
+     * Whether any inventory is decoded, i.e. might have changed since it was last saved.
+     * @return <code>true</code> if a player has their inventory in memory, otherwise <code>false</code>.
+     */
+    public boolean hasDecoded() {
+        return !this.decoded.isEmpty();
+    }
+
+    /**
+     * Whether any inventory might have changed since it was last saved,
+     * i.e. it's decoded now or was decoded since the last {@link #toTag()}.
+     * @return <code>true</code> if inventories have to be encoded again, otherwise <code>false</code>.
+     */
+    public boolean hasUnsavedChanges() {
+        return this.decodedSinceSave || this.hasDecoded();
+    }
+
+    /**
+     * Gets the inventory of the given player, decoding it if needed.
+     *
+     * @param player uuid of the player.
+     * @param owner container the inventory belongs to.
+     * @param registries registries to decode items with.
+     * @return inventory of the player, or <code>null</code> if it wasn't generated yet.
+     */
+    @Nullable
+    public InstancedContainer get(@NotNull UUID player, @NotNull Container owner, @NotNull HolderLookup.Provider registries) {
+        InstancedContainer inventory = this.decoded.get(player);
+        if (inventory != null) {
+            return inventory;
+        }
+
+        ListTag items = this.encoded.remove(player);
+        if (items == null) {
+            return null;
+        }
+
+        inventory = this.create(player, owner, registries);
+        NonNullList<ItemStack> stacks = NonNullList.withSize(inventory.getContainerSize(), ItemStack.EMPTY);
+        CompoundTag itemsTag = new CompoundTag();
+        itemsTag.put("Items", items);
+        ContainerHelper.loadAllItems(itemsTag, stacks, registries);
+        for (int slot = 0; slot < stacks.size(); ++slot) {
+            inventory.setItem(slot, stacks.get(slot));
+        }
+        return inventory;
+    }
+
+    /**
+     * Creates an empty inventory for the given player.
+     *
+     * @param player uuid of the player.
+     * @param owner container the inventory belongs to.
+     * @param registries registries to encode items with.
+     * @return new inventory of the player.
+     */
+    public InstancedContainer create(@NotNull UUID player, @NotNull Container owner, @NotNull HolderLookup.Provider registries) {
+        InstancedContainer inventory = new InstancedContainer(owner);
+        this.registries = registries;
+        this.decodedSinceSave = true;
+        this.encoded.remove(player);
+        this.decoded.put(player, inventory);
+        DECODED.computeIfAbsent(player, uuid -> new HashSet<>()).add(this);
+        return inventory;
+    }
+
+    /**
+     * Encodes all decoded inventories and drops them from memory, e.g. when the container is unloaded.
+     */
+    public void evictAll() {
+        this.decoded.forEach((player, inventory) -> {
+            this.encoded.put(player, this.encode(inventory));
+            Set<InstancedLoot> containers = DECODED.get(player);
+            if (containers != null && containers.remove(this) && containers.isEmpty()) {
+                DECODED.remove(player);
+            }
+        });
+        this.decoded.clear();
+    }
+
+    /**
+     * Encodes and drops all decoded inventories of the given player, e.g. when they leave.
+     * @param player uuid of the player.
+     */
+    public static void evictAll(@NotNull UUID player) {
+        Set<InstancedLoot> containers = DECODED.remove(player);
+        if (containers != null) {
+            containers.forEach(loot -> {
+                InstancedContainer inventory = loot.decoded.remove(player);
+                if (inventory != null) {
+                    loot.encoded.put(player, loot.encode(inventory));
+                }
+            });
+        }
+    }
+
+    /**
+     * Forgets all decoded inventories, e.g. when server stops.
+     */
+    public static void clearDecoded() {
+        DECODED.clear();
+    }
+
+    private ListTag encode(InstancedContainer inventory) {
+        NonNullList<ItemStack> stacks = NonNullList.withSize(inventory.getContainerSize(), ItemStack.EMPTY);
+        for (int slot = 0; slot < stacks.size(); ++slot) {
+            stacks.set(slot, inventory.getItem(slot));
+        }
+        CompoundTag itemsTag = new CompoundTag();
+        ContainerHelper.saveAllItems(itemsTag, stacks, this.registries);
+        return itemsTag.getList("Items", Tag.TAG_COMPOUND);
+    }
+
+    /**
+     * Saves all inventories. Decoded ones are encoded but stay in memory.
+     * @return list of player inventories.
+     */
+    public ListTag toTag() {
+        ListTag instances = new ListTag();
+        this.encoded.forEach((player, items) -> instances.add(entry(player, items)));
+        this.decoded.forEach((player, inventory) -> instances.add(entry(player, this.encode(inventory))));
+        this.decodedSinceSave = false;
+        return instances;
+    }
+
+    private static CompoundTag entry(UUID player, ListTag items) {
+        CompoundTag entry = new CompoundTag();
+        entry.putUUID("Player", player);
+        entry.put("Items", items);
+        return entry;
+    }
+
+    /**
+     * Loads inventories saved by {@link #toTag()}. Items are only decoded when needed.
+     * @param instances list of player inventories.
+     * @return loaded inventories.
+     */
+    public static InstancedLoot fromTag(@NotNull ListTag instances) {
+        InstancedLoot loot = new InstancedLoot();
+        for (Tag tag : instances) {
+            CompoundTag entry = (CompoundTag) tag;
+            if (entry.hasUUID("Player")) {
+                loot.encoded.put(entry.getUUID("Player"), entry.getList("Items", Tag.TAG_COMPOUND));
+            }
+        }
+        return loot;
+    }
+}
@@ -1,12 +1,19 @@
 package org.samo_lego.chestrefill.storage;
 
 import com.google.gson.annotations.SerializedName;
+import org.samo_lego.chestrefill.refill.RefillClock;
 import org.samo_lego.config2brigadier.IBrigadierConfigurator;
 import org.samo_lego.config2brigadier.annotation.BrigadierDescription;
 import org.samo_lego.config2brigadier.annotation.BrigadierExcluded;
 
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -25,6 +32,15 @@ public class LootConfig implements IBrigadierConfigurator {
         @SerializedName("randomize_loot_seed")
         public boolean randomizeLootSeed = true;
 
+        @BrigadierDescription(
+                value = "Whether randomized loot seeds are derived from the original seed, container position,\n" +
+                        "refill counter and player instead of the player's random generator.\n" +
+                        "Makes refills reproducible, e.g. for debugging.",
+                defaultOption = "false"
+        )
+        @SerializedName("deterministic_loot_seed")
+        public boolean deterministicLootSeed = false;
+
         @BrigadierDescription(
                 value = "Whether to allow players to reloot containers,\neven if they don't have `chestrefill.allowReloot` permission.",
                 defaultOption = "false"
@@ -52,8 +68,104 @@ public class LootConfig implements IBrigadierConfigurator {
         )
         @SerializedName("min_wait_time")
         public long minWaitTime = 14400;
+
+        @BrigadierDescription(
+                value = "Max number of players remembered per container, the ones that looted longest ago are forgotten first.\n" +
+                        "Forgotten players can loot the container again. -1 for unlimited.",
+                defaultOption = "-1"
+        )
+        @SerializedName("max_looters")
+        public int maxLooters = -1;
+
+        @BrigadierDescription(
+                value = "Time after which a player is forgotten and can loot the container again, in seconds. 0 to never forget.",
+                defaultOption = "0"
+        )
+        @SerializedName("looter_expiry")
+        public long looterExpiry = 0;
+
+        @BrigadierDescription(
+                value = "Whether each player has their own refill counter and cooldown,\n" +
+                        "instead of sharing them with everyone who loots the container.",
+                defaultOption = "false"
+        )
+        @SerializedName("per_player_refills")
+        public boolean perPlayerRefills = false;
+
+        @BrigadierDescription(
+                value = "Whether each player gets their own copy of the loot, generated when they first open the container.\n" +
+                        "Works for single containers, double chests always share their inventory.",
+                defaultOption = "false"
+        )
+        @SerializedName("instanced_loot")
+        public boolean instancedLoot = false;
+
+        @BrigadierDescription(
+                value = "Number of loot rolls to pre-generate in spare tick time, used by refills of empty containers\n" +
+                        "with randomized, non-deterministic seeds. Loot is generated without a player,\n" +
+                        "so only use it for loot tables that don't depend on the player or position (e.g. no treasure maps).\n" +
+                        "0 to disable.",
+                defaultOption = "0"
+        )
+        @SerializedName("loot_pool_size")
+        public int lootPoolSize = 0;
     }
 
+    @BrigadierDescription(
+            value = "How long to cache `chestrefill.allowReloot` permission lookups, in seconds.\n0 disables the cache.",
+            defaultOption = "30"
+    )
+    @SerializedName("permission_cache_ttl")
+    public long permissionCacheTtl = 30;
+
+    @BrigadierDescription(
+            value = "Clock to measure time between refills with.\n" +
+                    "`wall_clock` uses system time,\n" +
+                    "`game_time` uses ticks of the level's game time and\n" +
+                    "`server_ticks` uses ticks since server start, which reset on restart,\n" +
+                    "so it can only be used if min_wait_time and looter_expiry are 0 everywhere.",
+            defaultOption = "wall_clock"
+    )
+    @SerializedName("refill_clock")
+    public String refillClock = "wall_clock";
+
+    @BrigadierDescription(
+            value = "Max time per tick to spend on background work, such as pre-generating loot, in milliseconds.\n" +
+                    "Only spare tick time is used. 0 disables background work.",
+            defaultOption = "5"
+    )
+    @SerializedName("idle_work_time")
+    public long idleWorkTime = 5;
+
+    @BrigadierDescription(
+            value = "Radius around players in which loot of containers due for a refill is generated ahead of time, in blocks.\n" +
+                    "Loot is generated without a player, so luck doesn't apply. 0 disables pre-refilling.",
+            defaultOption = "0"
+    )
+    @SerializedName("pre_refill_radius")
+    public int preRefillRadius = 0;
+
+    @BrigadierDescription(
+            value = "Max number of containers to generate loot for ahead of time, per tick.",
+            defaultOption = "4"
+    )
+    @SerializedName("max_pre_refills_per_tick")
+    public int maxPreRefillsPerTick = 4;
+
+    @BrigadierDescription(
+            value = "Port to serve refill metrics on in the Prometheus text format, at `/metrics`. 0 disables the endpoint.",
+            defaultOption = "0"
+    )
+    @SerializedName("metrics_port")
+    public int metricsPort = 0;
+
+    @BrigadierDescription(
+            value = "Address to bind the metrics endpoint to.\nOnly reachable from this machine by default.",
+            defaultOption = "127.0.0.1"
+    )
+    @SerializedName("metrics_host")
+    public String metricsHost = "127.0.0.1";
+
     @SerializedName("// Map to override above config for certain loot tables only.")
     public final String _comment_lootModifierMap = "";
     public Map<String, DefaultProperties> lootModifierMap = Stream.of(new Object[][] {
@@ -63,14 +175,26 @@ public class LootConfig implements IBrigadierConfigurator {
 
     @BrigadierExcluded
     public transient String fileLocation;
+    /**
+     * Content of the file this config was loaded from, <code>null</code> if it didn't exist.
+     */
+    @BrigadierExcluded
+    private transient byte[] fileContent;
 
+    /**
+     * Loads the config from the given file, without writing anything.
+     * Once the config is accepted, {@link #writeIfOutdated()} brings the file up to date.
+     *
+     * @param file config file.
+     * @return loaded config.
+     */
     public static LootConfig load(File file) {
         LootConfig config = null;
+        byte[] fileContent = null;
         if (file.exists()) {
-            try (BufferedReader fileReader = new BufferedReader(
-                    new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)
-            )) {
-                config = GSON.fromJson(fileReader, LootConfig.class);
+            try {
+                fileContent = Files.readAllBytes(file.toPath());
+                config = GSON.fromJson(new String(fileContent, StandardCharsets.UTF_8), LootConfig.class);
             } catch (IOException e) {
                 throw new RuntimeException(MOD_ID + " Problem occurred when trying to load config: ", e);
             }
@@ -79,20 +203,115 @@ public class LootConfig implements IBrigadierConfigurator {
             config = new LootConfig();
 
         config.fileLocation = file.getAbsolutePath();
-
-        config.save();
+        config.fileContent = fileContent;
 
         return config;
 
     }
 
+    /**
+     * Rewrites the file this config was loaded from if it doesn't match the serialized config,
+     * e.g. if it doesn't exist yet or new options were added.
+     * Only call it once the config was validated and applied, so an invalid file is left as is to be fixed.
+     */
+    public void writeIfOutdated() {
+        byte[] content = this.serialize();
+        if (!Arrays.equals(content, this.fileContent)) {
+            this.writeFile(content);
+            this.fileContent = content;
+        }
+    }
+
+    /**
+     * Checks whether config values make sense.
+     * @throws IllegalArgumentException if any of the values is invalid.
+     */
+    public void validate() {
+        if (this.permissionCacheTtl < 0) {
+            throw new IllegalArgumentException("permission_cache_ttl can't be negative.");
+        }
+        if (this.idleWorkTime < 0) {
+            throw new IllegalArgumentException("idle_work_time can't be negative.");
+        }
+        if (this.preRefillRadius < 0) {
+            throw new IllegalArgumentException("pre_refill_radius can't be negative.");
+        }
+        if (this.maxPreRefillsPerTick < 0) {
+            throw new IllegalArgumentException("max_pre_refills_per_tick can't be negative.");
+        }
+        if (this.metricsPort < 0 || this.metricsPort > 65535) {
+            throw new IllegalArgumentException("metrics_port must be between 0 and 65535.");
+        }
+        if (this.metricsHost == null || this.metricsHost.isBlank()) {
+            throw new IllegalArgumentException("metrics_host can't be empty.");
+        }
+        RefillClock clock = RefillClock.byId(this.refillClock);
+        if (clock == null) {
+            throw new IllegalArgumentException("Unknown refill_clock: " + this.refillClock);
+        }
+        validate("defaultProperties", this.defaultProperties, clock);
+        this.lootModifierMap.forEach((name, properties) -> validate(name, properties, clock));
+    }
+
+    private static void validate(String name, DefaultProperties properties, RefillClock clock) {
+        if (properties == null) {
+            throw new IllegalArgumentException(name + ": missing properties.");
+        }
+        // Stored times would all count as long past after a restart, ending every cooldown at once
+        if (!clock.persistent && (properties.minWaitTime > 0 || properties.looterExpiry > 0)) {
+            throw new IllegalArgumentException(name + ": refill_clock " + clock.id +
+                    " restarts on every server start, it can't be used with min_wait_time or looter_expiry. Use game_time instead.");
+        }
+        if (properties.maxRefills < -1) {
+            throw new IllegalArgumentException(name + ": max_refills must be -1 or more.");
+        }
+        if (properties.minWaitTime < 0) {
+            throw new IllegalArgumentException(name + ": min_wait_time can't be negative.");
+        }
+        if (properties.maxLooters < -1) {
+            throw new IllegalArgumentException(name + ": max_looters must be -1 or more.");
+        }
+        if (properties.looterExpiry < 0) {
+            throw new IllegalArgumentException(name + ": looter_expiry can't be negative.");
+        }
+        if (properties.lootPoolSize < 0) {
+            throw new IllegalArgumentException(name + ": loot_pool_size can't be negative.");
+        }
+    }
+
     /**
      * Saves the config to the given file.
+     * Also recompiles {@link RefillPolicies}, as this is called after config is edited.
      */
     @Override
     public void save() {
-        try (Writer writer = new OutputStreamWriter(new FileOutputStream(this.fileLocation), StandardCharsets.UTF_8)) {
-            GSON.toJson(this, writer);
+        RefillPolicies.compile(this);
+        this.writeFile(this.serialize());
+    }
+
+    private byte[] serialize() {
+        return GSON.toJson(this).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the given content to {@link #fileLocation}.
+     * The content is written to a temporary file first, which then replaces the config file,
+     * so a crash can't leave a half-written config behind.
+     */
+    private void writeFile(byte[] content) {
+        Path path = Path.of(this.fileLocation);
+        try {
+            Path tempFile = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+            try {
+                Files.write(tempFile, content);
+                try {
+                    Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tempFile, path, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
         } catch (IOException e) {
             LOGGER.error("Problem occurred when saving config: {}", e.getMessage());
         }
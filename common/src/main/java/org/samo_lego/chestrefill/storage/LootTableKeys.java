@@ -0,0 +1,83 @@
+package org.samo_lego.chestrefill.storage;
+
+import net.minecraft.core.registries.Registries;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.resources.ResourceLocation;
+import net.minecraft.world.level.storage.loot.LootTable;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pool of loot table keys, by their saved id.
+ * <p>
+ * A world only has a few dozen distinct loot tables, but every container saves its own copy of the id.
+ * Looking the key up by the id string parses each distinct id only once, instead of creating
+ * a new {@link ResourceLocation} for every loaded container. Keys are canonical
+ * (Minecraft interns them as well), so they can be compared by identity.
+ * Ids of keys are cached the other way around too, for saving.
+ * <p>
+ * The pool is bounded, ids past the limit are parsed every time.
+ * Safe to use from any thread.
+ */
+public final class LootTableKeys {
+    private static final int MAX_SIZE = 4096;
+
+    private static final Map<String, ResourceKey<LootTable>> KEYS = new ConcurrentHashMap<>();
+    private static final Map<ResourceKey<LootTable>, String> IDS = new ConcurrentHashMap<>();
+
+    private LootTableKeys() {
+    }
+
+    /**
+     * Gets the key of the loot table with given id.
+     * @param id id of the loot table.
+     * @return canonical key.
+     * @throws net.minecraft.ResourceLocationException if id is not valid.
+     */
+    public static ResourceKey<LootTable> get(@NotNull String id) {
+        ResourceKey<LootTable> key = KEYS.get(id);
+        return key != null ? key : intern(id, ResourceLocation.parse(id));
+    }
+
+    /**
+     * Gets the key of the loot table with given id, if the id is valid.
+     * @param id id of the loot table.
+     * @return canonical key, or <code>null</code> if id is not valid.
+     */
+    @Nullable
+    public static ResourceKey<LootTable> tryGet(@NotNull String id) {
+        ResourceKey<LootTable> key = KEYS.get(id);
+        if (key != null) {
+            return key;
+        }
+        ResourceLocation location = ResourceLocation.tryParse(id);
+        return location != null ? intern(id, location) : null;
+    }
+
+    private static ResourceKey<LootTable> intern(String id, ResourceLocation location) {
+        ResourceKey<LootTable> key = ResourceKey.create(Registries.LOOT_TABLE, location);
+        if (KEYS.size() < MAX_SIZE) {
+            KEYS.putIfAbsent(id, key);
+        }
+        return key;
+    }
+
+    /**
+     * Gets the id of the given loot table, as saved.
+     * @param key key of the loot table.
+     * @return id of the loot table.
+     */
+    public static String id(@NotNull ResourceKey<LootTable> key) {
+        String id = IDS.get(key);
+        if (id == null) {
+            id = key.location().toString();
+            if (IDS.size() < MAX_SIZE) {
+                IDS.putIfAbsent(key, id);
+            }
+        }
+        return id;
+    }
+}
@@ -0,0 +1,458 @@
+package org.samo_lego.chestrefill.storage;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.UUID;
+
+/**
+ * History of players that have already looted a container, with the time of their last loot
+ * and the number of refills they got.
+ * <p>
+ * Entries are raw (mostBits, leastBits, packed) long triples, kept in a ring buffer ordered from
+ * the oldest to the most recent loot. A player that loots again leaves a tombstone in their old slot
+ * and is appended to the end, so the oldest entries can always be evicted from the head of the ring,
+ * either to keep the history under a size limit or once they've expired.
+ * Tombstones are skipped at the head and dropped whenever the ring is full.
+ * <p>
+ * Up to {@link #LINEAR_SCAN_LIMIT} slots are scanned to find a player, which covers the vast
+ * majority of containers. Bigger rings get an open-addressing hash index of ring slots, which is kept
+ * up to date on every change (removals use backward-shift deletion) and only rebuilt when the ring grows.
+ * <p>
+ * The packed long holds the loot time in its lower {@link #TIME_BITS} bits
+ * and the refill count of the player in the remaining upper bits.
+ */
+public final class LootedPlayers {
+    /**
+     * Loot time of players that aren't in the history.
+     */
+    public static final long NOT_LOOTED = Long.MIN_VALUE;
+
+    private static final int TIME_BITS = 48;
+    private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+    /**
+     * Highest refill count, the all-ones count is reserved for {@link #TOMBSTONE}.
+     */
+    private static final int MAX_REFILL_COUNT = (1 << (Long.SIZE - TIME_BITS)) - 2;
+    /**
+     * Packed value of slots whose player has moved to the end of the ring.
+     */
+    private static final long TOMBSTONE = -1L;
+
+    private static final int ENTRY_WIDTH = 3;
+    private static final int INITIAL_CAPACITY = 4;
+    private static final int LINEAR_SCAN_LIMIT = 8;
+    private static final int MIN_INDEX_SLOTS = 16;
+
+    /**
+     * Ring of interleaved most / least significant bits and packed loot time.
+     * Logical slot <code>i</code> is at ring slot <code>(head + i) % capacity</code>.
+     */
+    private long[] entries;
+    private int head;
+    /**
+     * Number of used slots, including tombstones. The head slot is never a tombstone.
+     */
+    private int used;
+    /**
+     * Number of players, i.e. used slots that aren't tombstones.
+     */
+    private int size;
+    /**
+     * Ring slot + 1 of each player, 0 marks an empty slot. <code>null</code> while the ring is small.
+     * Sized for the whole ring, so it never gets more than half full.
+     */
+    private int[] index;
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    public boolean contains(@NotNull UUID uuid) {
+        return this.contains(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    public boolean contains(long most, long least) {
+        return this.find(most, least) != -1;
+    }
+
+    /**
+     * Gets the time the given player last looted the container.
+     * @param uuid uuid of the player.
+     * @return loot time, or {@link #NOT_LOOTED} if the player isn't in the history.
+     */
+    public long getLootTime(@NotNull UUID uuid) {
+        int slot = this.find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        return slot == -1 ? NOT_LOOTED : this.entries[slot * ENTRY_WIDTH + 2] & TIME_MASK;
+    }
+
+    /**
+     * Gets the number of refills the given player got.
+     * @param uuid uuid of the player.
+     * @return refill count, 0 if the player isn't in the history.
+     */
+    public int getRefillCount(@NotNull UUID uuid) {
+        int slot = this.find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        return slot == -1 ? 0 : (int) (this.entries[slot * ENTRY_WIDTH + 2] >>> TIME_BITS);
+    }
+
+    /**
+     * Counts a refill for the given player, if they're in the history.
+     * @param uuid uuid of the player.
+     */
+    public void incrementRefillCount(@NotNull UUID uuid) {
+        int slot = this.find(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        if (slot != -1 && this.entries[slot * ENTRY_WIDTH + 2] >>> TIME_BITS < MAX_REFILL_COUNT) {
+            this.entries[slot * ENTRY_WIDTH + 2] += 1L << TIME_BITS;
+        }
+    }
+
+    /**
+     * Records a loot by the given player.
+     * If the player is already in the history, their loot time is updated and they become the most recent entry.
+     * Their refill count is kept.
+     *
+     * @param uuid uuid of the player.
+     * @param time time of the loot, must fit into {@value #TIME_BITS} bits.
+     * @return <code>true</code> if the player wasn't in the history yet, otherwise <code>false</code>.
+     */
+    public boolean add(@NotNull UUID uuid, long time) {
+        return this.add(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), time);
+    }
+
+    public boolean add(long most, long least, long time) {
+        int slot = this.find(most, least);
+        if (slot != -1) {
+            this.moveToTail(slot, time);
+            return false;
+        }
+        this.append(most, least, time & TIME_MASK);
+        return true;
+    }
+
+    private void append(long most, long least, long packed) {
+        if (this.entries == null) {
+            this.entries = new long[INITIAL_CAPACITY * ENTRY_WIDTH];
+        } else if (this.used == this.capacity()) {
+            this.grow();
+        }
+
+        int slot = this.slot(this.used++);
+        ++this.size;
+        this.entries[slot * ENTRY_WIDTH] = most;
+        this.entries[slot * ENTRY_WIDTH + 1] = least;
+        this.entries[slot * ENTRY_WIDTH + 2] = packed;
+        if (this.index != null) {
+            this.indexSlot(slot);
+        } else if (this.used > LINEAR_SCAN_LIMIT) {
+            this.rebuildIndex();
+        }
+    }
+
+    /**
+     * Evicts the oldest entries until at most <code>maxSize</code> remain.
+     * @param maxSize max size of the history.
+     * @return number of evicted entries.
+     */
+    public int evictOldest(int maxSize) {
+        int evicted = Math.max(0, this.size - maxSize);
+        for (int i = 0; i < evicted; ++i) {
+            this.removeHead();
+        }
+        return evicted;
+    }
+
+    /**
+     * Evicts entries that were looted before the given time.
+     * @param before time to evict entries older than.
+     * @return number of evicted entries.
+     */
+    public int expire(long before) {
+        int evicted = 0;
+        // Ring is ordered by loot time, stop at the first entry that is recent enough
+        while (this.size > 0 && (this.entries[this.head * ENTRY_WIDTH + 2] & TIME_MASK) < before) {
+            this.removeHead();
+            ++evicted;
+        }
+        return evicted;
+    }
+
+    /**
+     * Sets the loot time of all entries, e.g. when times were measured by another clock and can't be compared anymore.
+     * @param time new loot time.
+     */
+    public void restamp(long time) {
+        for (int i = 0; i < this.used; ++i) {
+            int index = this.slot(i) * ENTRY_WIDTH + 2;
+            if (this.entries[index] != TOMBSTONE) {
+                this.entries[index] = (this.entries[index] & ~TIME_MASK) | (time & TIME_MASK);
+            }
+        }
+    }
+
+    /**
+     * Sets the refill count of every player back to 0, keeping their loot times.
+     * @return <code>true</code> if any player had refills, otherwise <code>false</code>.
+     */
+    public boolean resetRefillCounts() {
+        boolean changed = false;
+        for (int i = 0; i < this.used; ++i) {
+            int index = this.slot(i) * ENTRY_WIDTH + 2;
+            long packed = this.entries[index];
+            if (packed != TOMBSTONE && (packed & ~TIME_MASK) != 0) {
+                this.entries[index] = packed & TIME_MASK;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    public void clear() {
+        this.entries = null;
+        this.head = 0;
+        this.used = 0;
+        this.size = 0;
+        this.index = null;
+    }
+
+    /**
+     * Calls the given consumer for every stored player, from the oldest to the most recent loot.
+     * @param consumer consumer accepting most and least significant bits of the UUID.
+     */
+    public void forEach(@NotNull UuidBitsConsumer consumer) {
+        for (int i = 0; i < this.used; ++i) {
+            int slot = this.slot(i);
+            if (this.entries[slot * ENTRY_WIDTH + 2] != TOMBSTONE) {
+                consumer.accept(this.entries[slot * ENTRY_WIDTH], this.entries[slot * ENTRY_WIDTH + 1]);
+            }
+        }
+    }
+
+    /**
+     * Packs the history into a flat array of (most, least, packed time and refill count) triples,
+     * as used by the <code>Looters</code> NBT tag.
+     * @return new array of length <code>3 * size()</code>, from the oldest to the most recent loot.
+     */
+    public long[] toLongArray() {
+        long[] packed = new long[this.size * ENTRY_WIDTH];
+        if (this.size == 0) {
+            return packed;
+        }
+
+        if (this.used == this.size) {
+            // Ring might wrap around, copy the part up to the end of the array first
+            int firstPart = Math.min(this.size, this.capacity() - this.head);
+            System.arraycopy(this.entries, this.head * ENTRY_WIDTH, packed, 0, firstPart * ENTRY_WIDTH);
+            System.arraycopy(this.entries, 0, packed, firstPart * ENTRY_WIDTH, (this.size - firstPart) * ENTRY_WIDTH);
+            return packed;
+        }
+
+        int written = 0;
+        for (int i = 0; i < this.used; ++i) {
+            int slot = this.slot(i);
+            if (this.entries[slot * ENTRY_WIDTH + 2] != TOMBSTONE) {
+                System.arraycopy(this.entries, slot * ENTRY_WIDTH, packed, written, ENTRY_WIDTH);
+                written += ENTRY_WIDTH;
+            }
+        }
+        return packed;
+    }
+
+    /**
+     * Adds all players from a flat array of triples.
+     * @param packed array as produced by {@link #toLongArray()}.
+     */
+    public void addAll(long[] packed) {
+        for (int i = 0; i + 2 < packed.length; i += ENTRY_WIDTH) {
+            int slot = this.find(packed[i], packed[i + 1]);
+            if (slot == -1) {
+                long refillCount = Math.min(packed[i + 2] >>> TIME_BITS, MAX_REFILL_COUNT);
+                this.append(packed[i], packed[i + 1], (refillCount << TIME_BITS) | (packed[i + 2] & TIME_MASK));
+            } else {
+                this.moveToTail(slot, packed[i + 2] & TIME_MASK);
+            }
+        }
+    }
+
+    /**
+     * Adds all players from a flat array of (most, least) pairs, as used by the old <code>LootedPlayers</code> NBT tag.
+     * @param packed pairs of UUID bits.
+     * @param time loot time to use for all players.
+     */
+    public void addAllPairs(long[] packed, long time) {
+        for (int i = 0; i + 1 < packed.length; i += 2) {
+            this.add(packed[i], packed[i + 1], time);
+        }
+    }
+
+    private int capacity() {
+        return this.entries.length / ENTRY_WIDTH;
+    }
+
+    /**
+     * Ring slot of the logical slot.
+     */
+    private int slot(int i) {
+        return (this.head + i) % this.capacity();
+    }
+
+    /**
+     * Finds the ring slot of the given player.
+     * @return slot, or -1 if player isn't in the history.
+     */
+    private int find(long most, long least) {
+        if (this.index == null) {
+            for (int i = 0; i < this.used; ++i) {
+                int slot = this.slot(i);
+                if (this.entries[slot * ENTRY_WIDTH] == most && this.entries[slot * ENTRY_WIDTH + 1] == least &&
+                        this.entries[slot * ENTRY_WIDTH + 2] != TOMBSTONE) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        int mask = this.index.length - 1;
+        for (int i = hash(most, least) & mask; ; i = (i + 1) & mask) {
+            int slot = this.index[i] - 1;
+            if (slot == -1) {
+                return -1;
+            }
+            if (this.entries[slot * ENTRY_WIDTH] == most && this.entries[slot * ENTRY_WIDTH + 1] == least) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Moves the entry to the end of the ring and updates its loot time, keeping its refill count.
+     * The old slot becomes a tombstone, so no other entry has to move.
+     */
+    private void moveToTail(int slot, long time) {
+        long packed = (this.entries[slot * ENTRY_WIDTH + 2] & ~TIME_MASK) | (time & TIME_MASK);
+        if (slot == this.slot(this.used - 1)) {
+            this.entries[slot * ENTRY_WIDTH + 2] = packed;
+            return;
+        }
+
+        this.unindexSlot(slot);
+        this.entries[slot * ENTRY_WIDTH + 2] = TOMBSTONE;
+        --this.size;
+        this.skipTombstones();
+        this.append(this.entries[slot * ENTRY_WIDTH], this.entries[slot * ENTRY_WIDTH + 1], packed);
+    }
+
+    private void removeHead() {
+        this.unindexSlot(this.head);
+        this.head = (this.head + 1) % this.capacity();
+        --this.used;
+        --this.size;
+        this.skipTombstones();
+    }
+
+    /**
+     * Drops tombstones at the head of the ring, so the head is always the oldest player.
+     */
+    private void skipTombstones() {
+        while (this.used > 0 && this.entries[this.head * ENTRY_WIDTH + 2] == TOMBSTONE) {
+            this.head = (this.head + 1) % this.capacity();
+            --this.used;
+        }
+        if (this.used == 0) {
+            this.head = 0;
+        }
+    }
+
+    /**
+     * Makes room for another entry once the ring is full. Drops tombstones,
+     * and doubles the capacity unless at least half of the ring were tombstones.
+     */
+    private void grow() {
+        long[] packed = this.toLongArray();
+        int capacity = this.size * 2 > this.capacity() ? this.capacity() * 2 : this.capacity();
+        this.entries = new long[capacity * ENTRY_WIDTH];
+        System.arraycopy(packed, 0, this.entries, 0, packed.length);
+        this.head = 0;
+        this.used = this.size;
+        if (this.index != null) {
+            this.rebuildIndex();
+        }
+    }
+
+    private void rebuildIndex() {
+        // Players never take up more than half of the index, so probe sequences stay short
+        this.index = new int[Math.max(MIN_INDEX_SLOTS, Integer.highestOneBit(this.capacity() * 2 - 1) << 1)];
+        for (int i = 0; i < this.used; ++i) {
+            int slot = this.slot(i);
+            if (this.entries[slot * ENTRY_WIDTH + 2] != TOMBSTONE) {
+                this.indexSlot(slot);
+            }
+        }
+    }
+
+    /**
+     * Adds the ring slot to the index.
+     */
+    private void indexSlot(int slot) {
+        int mask = this.index.length - 1;
+        int i = hash(this.entries[slot * ENTRY_WIDTH], this.entries[slot * ENTRY_WIDTH + 1]) & mask;
+        while (this.index[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        this.index[i] = slot + 1;
+    }
+
+    /**
+     * Removes the ring slot from the index, if it's built, with backward-shift deletion:
+     * following entries of the probe sequence are moved into the gap, unless they'd end up before their home slot.
+     */
+    private void unindexSlot(int slot) {
+        if (this.index == null) {
+            return;
+        }
+
+        int mask = this.index.length - 1;
+        int gap = hash(this.entries[slot * ENTRY_WIDTH], this.entries[slot * ENTRY_WIDTH + 1]) & mask;
+        while (this.index[gap] != slot + 1) {
+            gap = (gap + 1) & mask;
+        }
+
+        for (int i = (gap + 1) & mask; this.index[i] != 0; i = (i + 1) & mask) {
+            int moved = this.index[i] - 1;
+            int home = hash(this.entries[moved * ENTRY_WIDTH], this.entries[moved * ENTRY_WIDTH + 1]) & mask;
+            // Entry can fill the gap only if its home isn't cyclically within (gap, i]
+            if (gap <= i ? (home <= gap || home > i) : (home <= gap && home > i)) {
+                this.index[gap] = this.index[i];
+                gap = i;
+            }
+        }
+        this.index[gap] = 0;
+    }
+
+    private static int hash(long most, long least) {
+        // Murmur3 finalizer, UUIDv4 bits are mostly random already
+        long h = most * 31 + least;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("LootedPlayers[");
+        this.forEach((most, least) -> builder.append(new UUID(most, least)).append(','));
+        if (this.size > 0) {
+            builder.setLength(builder.length() - 1);
+        }
+        return builder.append(']').toString();
+    }
+
+    @FunctionalInterface
+    public interface UuidBitsConsumer {
+        void accept(long most, long least);
+    }
+}
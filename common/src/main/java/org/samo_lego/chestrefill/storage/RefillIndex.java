@@ -0,0 +1,684 @@
+package org.samo_lego.chestrefill.storage;
+
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.minecraft.core.BlockPos;
+import net.minecraft.core.HolderLookup;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.IntArrayTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.LongArrayTag;
+import net.minecraft.nbt.NbtAccounter;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.StringTag;
+import net.minecraft.nbt.Tag;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.dimension.DimensionType;
+import net.minecraft.world.level.saveddata.SavedData;
+import net.minecraft.world.level.storage.LevelResource;
+import net.minecraft.world.level.storage.loot.LootTable;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.samo_lego.chestrefill.refill.RefillClock;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.LongPredicate;
+
+import static org.samo_lego.chestrefill.ChestRefill.LOGGER;
+
+/**
+ * Per-dimension copy of refill states, saved in the level's <code>data</code> folder
+ * instead of chunk NBT, so it can be queried without loading chunks or reading region files.
+ * <p>
+ * Records are split into segments of 32x32 chunks, same as region files.
+ * Each segment is saved to its own file in the {@link #FILE_ID} folder, and only if it changed,
+ * so autosaves don't rewrite the records of the whole dimension.
+ * The {@link #FILE_ID} saved data itself only lists the segments.
+ * <p>
+ * Each container has a fixed-width record of {@link #RECORD_WIDTH} longs:
+ * <ol>
+ *     <li>packed position</li>
+ *     <li>loot table index (upper 32 bits) and refill counter (lower 32 bits)</li>
+ *     <li>last refill time</li>
+ *     <li>clock ordinal (lowest 8 bits), custom policy flag (bit 8), custom per-player refills flag (bit 9)
+ *     and custom max refills (upper 32 bits)</li>
+ *     <li>custom min wait time</li>
+ * </ol>
+ * Looters are kept in an append-only log of (position, most, least) triples per segment.
+ * Each record remembers where its entries start in the log, earlier entries of its position are dead.
+ * Dead entries, of removed records or of replaced looters, are only dropped when the segment is compacted on save.
+ * <p>
+ * The chunk NBT stays the source of truth, records are refreshed whenever a container is loaded or looted.
+ * Only accessed from the server thread.
+ */
+public final class RefillIndex extends SavedData {
+    public static final String FILE_ID = "chestrefill_index";
+    private static final Factory<RefillIndex> FACTORY = new Factory<>(RefillIndex::new, RefillIndex::load, null);
+
+    private static final int RECORD_WIDTH = 5;
+    private static final long CUSTOM_POLICY_FLAG = 1L << 8;
+    private static final long CUSTOM_PER_PLAYER_FLAG = 1L << 9;
+
+    private final Long2ObjectOpenHashMap<Segment> segments = new Long2ObjectOpenHashMap<>();
+    /**
+     * Keys of segments whose file is outdated.
+     */
+    private final LongOpenHashSet dirtySegments = new LongOpenHashSet();
+    /**
+     * Keys of segments listed in the saved data, read once the folder is known.
+     */
+    private long[] unreadSegments = new long[0];
+    @Nullable
+    private Path folder;
+    private int size;
+
+    private RefillIndex() {
+    }
+
+    public static RefillIndex get(@NotNull ServerLevel level) {
+        RefillIndex index = level.getDataStorage().computeIfAbsent(FACTORY, FILE_ID);
+        if (index.folder == null) {
+            Path dimensionFolder = DimensionType.getStorageFolder(level.dimension(), level.getServer().getWorldPath(LevelResource.ROOT));
+            index.open(dimensionFolder.resolve("data").resolve(FILE_ID));
+        }
+        return index;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean contains(@NotNull BlockPos pos) {
+        Segment segment = this.segments.get(segmentKey(pos.asLong()));
+        return segment != null && segment.slots.containsKey(pos.asLong());
+    }
+
+    /**
+     * Creates or refreshes the record of a container.
+     * If the record is new, all looters of the state are logged as well.
+     *
+     * @param pos position of the container.
+     * @param state refill state of the container.
+     * @return <code>true</code> if a new record was created, otherwise <code>false</code>.
+     */
+    public boolean update(@NotNull BlockPos pos, @NotNull RefillState state) {
+        long packedPos = pos.asLong();
+        long key = segmentKey(packedPos);
+        Segment segment = this.segments.computeIfAbsent(key, k -> new Segment());
+        int slot = segment.slots.get(packedPos);
+        boolean created = slot == -1;
+        if (created) {
+            slot = segment.allocate(packedPos);
+            ++this.size;
+        }
+
+        long flags = state.getLastRefillClock().ordinal();
+        long customWaitTime = 0L;
+        RefillPolicy customPolicy = state.getCustomPolicy();
+        if (customPolicy != null) {
+            flags |= CUSTOM_POLICY_FLAG | ((long) customPolicy.maxRefills << 32);
+            if (customPolicy.perPlayerRefills) {
+                flags |= CUSTOM_PER_PLAYER_FLAG;
+            }
+            customWaitTime = customPolicy.minWaitTime;
+        }
+
+        int offset = slot * RECORD_WIDTH;
+        boolean changed = segment.write(offset + 1, ((long) segment.lootTableIndex(state.getSavedLootTable()) << 32) | (state.getRefillCounter() & 0xFFFFFFFFL));
+        changed |= segment.write(offset + 2, state.getLastRefillTime());
+        changed |= segment.write(offset + 3, flags);
+        changed |= segment.write(offset + 4, customWaitTime);
+
+        if (created) {
+            int recordSlot = slot;
+            state.getLootedPlayers().forEach((most, least) -> segment.appendLooter(recordSlot, packedPos, most, least));
+        }
+        // Records are refreshed on every chunk load, don't resave the index if nothing changed
+        if (created || changed) {
+            this.markDirty(key);
+        }
+        return created;
+    }
+
+    /**
+     * Logs a new looter of the container.
+     * @param pos position of the container.
+     * @param player uuid of the looter.
+     */
+    public void addLooter(@NotNull BlockPos pos, @NotNull UUID player) {
+        long packedPos = pos.asLong();
+        long key = segmentKey(packedPos);
+        Segment segment = this.segments.get(key);
+        int slot = segment == null ? -1 : segment.slots.get(packedPos);
+        if (slot == -1) {
+            return;
+        }
+        segment.appendLooter(slot, packedPos, player.getMostSignificantBits(), player.getLeastSignificantBits());
+        this.markDirty(key);
+    }
+
+    /**
+     * Replaces logged looters of the container with the current looters of its state,
+     * e.g. after some were evicted from the looter history.
+     * Current looters are logged anew, old entries are left for compaction.
+     *
+     * @param pos position of the container.
+     * @param state refill state of the container.
+     */
+    public void resetLooters(@NotNull BlockPos pos, @NotNull RefillState state) {
+        long packedPos = pos.asLong();
+        long key = segmentKey(packedPos);
+        Segment segment = this.segments.get(key);
+        int slot = segment == null ? -1 : segment.slots.get(packedPos);
+        if (slot == -1) {
+            return;
+        }
+
+        segment.deadLooterEntries += segment.looterCounts[slot];
+        segment.looterStarts[slot] = segment.looterLog.size();
+        segment.looterCounts[slot] = 0;
+        state.getLootedPlayers().forEach((most, least) -> segment.appendLooter(slot, packedPos, most, least));
+        this.markDirty(key);
+    }
+
+    /**
+     * Removes the record of a container, e.g. if it no longer exists.
+     * Its looter entries are left for compaction.
+     * @param packedPos packed position of the container.
+     */
+    public void remove(long packedPos) {
+        long key = segmentKey(packedPos);
+        Segment segment = this.segments.get(key);
+        if (segment != null && segment.remove(packedPos)) {
+            --this.size;
+            this.markDirty(key);
+        }
+    }
+
+    /**
+     * Gets the refill record of a container.
+     * @param pos position of the container.
+     * @return record, or <code>null</code> if container isn't indexed.
+     */
+    @Nullable
+    public Record getRecord(@NotNull BlockPos pos) {
+        Segment segment = this.segments.get(segmentKey(pos.asLong()));
+        int slot = segment == null ? -1 : segment.slots.get(pos.asLong());
+        return slot == -1 ? null : segment.readRecord(slot);
+    }
+
+    /**
+     * Gets all records.
+     * @return records in no particular order.
+     */
+    public List<Record> getRecords() {
+        List<Record> result = new ArrayList<>(this.size);
+        for (Segment segment : this.segments.values()) {
+            for (int slot = 0; slot < segment.recordCount; ++slot) {
+                result.add(segment.readRecord(slot));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds containers that have refills left and whose cooldown has passed.
+     *
+     * @param snapshot policies to check records against.
+     * @param now current time, measured by the clock of given snapshot.
+     * @return packed positions of containers that can be refilled.
+     */
+    public LongArrayList findReady(@NotNull RefillPolicies.Snapshot snapshot, long now) {
+        LongArrayList ready = new LongArrayList();
+        for (Segment segment : this.segments.values()) {
+            for (int slot = 0; slot < segment.recordCount; ++slot) {
+                Record record = segment.readRecord(slot);
+                if (record.isReady(snapshot, now)) {
+                    ready.add(record.pos);
+                }
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Counts logged looters of the container.
+     * @param pos position of the container.
+     * @return number of looters.
+     */
+    public int countLooters(@NotNull BlockPos pos) {
+        Segment segment = this.segments.get(segmentKey(pos.asLong()));
+        int slot = segment == null ? -1 : segment.slots.get(pos.asLong());
+        return slot == -1 ? 0 : segment.looterCounts[slot];
+    }
+
+    /**
+     * Drops records for which the given predicate matches.
+     * @param stale predicate accepting packed position of the container.
+     * @return number of removed records.
+     */
+    public int removeIf(@NotNull LongPredicate stale) {
+        int removed = 0;
+        for (Long2ObjectMap.Entry<Segment> entry : this.segments.long2ObjectEntrySet()) {
+            int segmentRemoved = entry.getValue().removeIf(stale);
+            if (segmentRemoved > 0) {
+                removed += segmentRemoved;
+                this.markDirty(entry.getLongKey());
+            }
+        }
+        this.size -= removed;
+        return removed;
+    }
+
+    private void markDirty(long key) {
+        this.dirtySegments.add(key);
+        this.setDirty();
+    }
+
+    /**
+     * Gets the key of the segment containing given position.
+     * @param packedPos packed block position.
+     * @return packed region coordinates.
+     */
+    private static long segmentKey(long packedPos) {
+        return ChunkPos.asLong(BlockPos.getX(packedPos) >> 9, BlockPos.getZ(packedPos) >> 9);
+    }
+
+    private static Path segmentFile(Path folder, long key) {
+        return folder.resolve("r." + ChunkPos.getX(key) + "." + ChunkPos.getZ(key) + ".dat");
+    }
+
+    /**
+     * Reads the segments listed in saved data.
+     * Segments that can't be read are dropped, their records are restored once the containers are loaded again.
+     *
+     * @param folder folder of segment files.
+     */
+    private void open(Path folder) {
+        this.folder = folder;
+        for (long key : this.unreadSegments) {
+            Path file = segmentFile(folder, key);
+            // Segments migrated from the single file format are already in memory
+            if (this.segments.containsKey(key) || !Files.exists(file)) {
+                continue;
+            }
+            try {
+                Segment segment = Segment.load(NbtIo.readCompressed(file, NbtAccounter.unlimitedHeap()));
+                this.segments.put(key, segment);
+                this.size += segment.recordCount;
+            } catch (IOException e) {
+                LOGGER.warn("Failed to read refill index segment {}: {}", file, e.getMessage());
+            }
+        }
+        this.unreadSegments = new long[0];
+    }
+
+    private static RefillIndex load(CompoundTag tag, HolderLookup.Provider registries) {
+        RefillIndex index = new RefillIndex();
+        index.unreadSegments = tag.getLongArray("Segments");
+
+        if (tag.contains("Records", Tag.TAG_LONG_ARRAY)) {
+            // Single file format, split it into segments that are written on next save
+            Segment legacy = Segment.load(tag);
+            for (int slot = 0; slot < legacy.recordCount; ++slot) {
+                int offset = slot * RECORD_WIDTH;
+                long packedPos = legacy.records[offset];
+                long key = segmentKey(packedPos);
+                Segment segment = index.segments.computeIfAbsent(key, k -> new Segment());
+                int target = segment.allocate(packedPos) * RECORD_WIDTH;
+                System.arraycopy(legacy.records, offset + 1, segment.records, target + 1, RECORD_WIDTH - 1);
+                String lootTable = legacy.lootTables.get((int) (legacy.records[offset + 1] >>> 32));
+                segment.records[target + 1] = ((long) segment.lootTableIndex(lootTable) << 32) | (legacy.records[offset + 1] & 0xFFFFFFFFL);
+                index.dirtySegments.add(key);
+                ++index.size;
+            }
+            for (int i = 0; i < legacy.looterLog.size(); i += 3) {
+                if (legacy.isLive(i)) {
+                    long packedPos = legacy.looterLog.getLong(i);
+                    Segment segment = index.segments.get(segmentKey(packedPos));
+                    segment.appendLooter(segment.slots.get(packedPos), packedPos, legacy.looterLog.getLong(i + 1), legacy.looterLog.getLong(i + 2));
+                }
+            }
+            index.setDirty();
+        }
+
+        return index;
+    }
+
+    @Override
+    public @NotNull CompoundTag save(CompoundTag tag, HolderLookup.Provider registries) {
+        if (this.folder != null && !this.dirtySegments.isEmpty()) {
+            this.saveSegments(this.folder);
+        }
+
+        LongOpenHashSet keys = new LongOpenHashSet(this.segments.keySet());
+        // Segments that failed to save are kept listed, so their older file is read on next start
+        keys.addAll(this.dirtySegments);
+        tag.putLongArray("Segments", keys.toLongArray());
+        return tag;
+    }
+
+    private void saveSegments(Path folder) {
+        try {
+            Files.createDirectories(folder);
+        } catch (IOException e) {
+            LOGGER.error("Failed to create refill index folder {}: {}", folder, e.getMessage());
+            return;
+        }
+
+        LongIterator iterator = this.dirtySegments.iterator();
+        while (iterator.hasNext()) {
+            long key = iterator.nextLong();
+            Path file = segmentFile(folder, key);
+            Segment segment = this.segments.get(key);
+            try {
+                if (segment == null || segment.recordCount == 0) {
+                    this.segments.remove(key);
+                    Files.deleteIfExists(file);
+                } else {
+                    // Written next to the old file first, so a crash can't leave a half-written segment behind
+                    Path tempFile = Files.createTempFile(folder, file.getFileName().toString(), ".tmp");
+                    NbtIo.writeCompressed(segment.save(), tempFile);
+                    Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                iterator.remove();
+            } catch (IOException e) {
+                LOGGER.error("Failed to save refill index segment {}: {}", file, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Records of containers in a single region.
+     */
+    private static final class Segment {
+        private final Long2IntOpenHashMap slots = new Long2IntOpenHashMap();
+        private long[] records = new long[RECORD_WIDTH * 16];
+        private int recordCount;
+
+        private final List<String> lootTables = new ArrayList<>();
+        private final Object2IntOpenHashMap<String> lootTableIndices = new Object2IntOpenHashMap<>();
+
+        private final LongArrayList looterLog = new LongArrayList();
+        /**
+         * Index of the first log entry of each record, by slot.
+         */
+        private int[] looterStarts = new int[16];
+        /**
+         * Number of live log entries of each record, by slot.
+         */
+        private int[] looterCounts = new int[16];
+        private int deadLooterEntries;
+
+        private Segment() {
+            this.slots.defaultReturnValue(-1);
+            this.lootTableIndices.defaultReturnValue(-1);
+        }
+
+        /**
+         * Creates an empty record.
+         * @param packedPos packed position of the container.
+         * @return slot of the record.
+         */
+        private int allocate(long packedPos) {
+            int slot = this.recordCount++;
+            if (slot * RECORD_WIDTH >= this.records.length) {
+                this.records = Arrays.copyOf(this.records, this.records.length * 2);
+            }
+            if (slot >= this.looterStarts.length) {
+                this.looterStarts = Arrays.copyOf(this.looterStarts, this.looterStarts.length * 2);
+                this.looterCounts = Arrays.copyOf(this.looterCounts, this.looterCounts.length * 2);
+            }
+            this.slots.put(packedPos, slot);
+            Arrays.fill(this.records, slot * RECORD_WIDTH, (slot + 1) * RECORD_WIDTH, 0L);
+            this.records[slot * RECORD_WIDTH] = packedPos;
+            // Entries of an earlier record at this position are dead
+            this.looterStarts[slot] = this.looterLog.size();
+            this.looterCounts[slot] = 0;
+            return slot;
+        }
+
+        private boolean write(int index, long value) {
+            if (this.records[index] == value) {
+                return false;
+            }
+            this.records[index] = value;
+            return true;
+        }
+
+        private boolean remove(long packedPos) {
+            int slot = this.slots.remove(packedPos);
+            if (slot == -1) {
+                return false;
+            }
+            this.deadLooterEntries += this.looterCounts[slot];
+
+            // Move last record into the freed slot
+            int last = --this.recordCount;
+            if (slot != last) {
+                this.moveRecord(last, slot);
+            }
+            return true;
+        }
+
+        private void moveRecord(int from, int to) {
+            System.arraycopy(this.records, from * RECORD_WIDTH, this.records, to * RECORD_WIDTH, RECORD_WIDTH);
+            this.looterStarts[to] = this.looterStarts[from];
+            this.looterCounts[to] = this.looterCounts[from];
+            this.slots.put(this.records[to * RECORD_WIDTH], to);
+        }
+
+        private int removeIf(LongPredicate stale) {
+            // Single pass, kept records are moved down over the removed ones
+            int kept = 0;
+            for (int slot = 0; slot < this.recordCount; ++slot) {
+                long pos = this.records[slot * RECORD_WIDTH];
+                if (stale.test(pos)) {
+                    this.slots.remove(pos);
+                    this.deadLooterEntries += this.looterCounts[slot];
+                } else {
+                    if (kept != slot) {
+                        this.moveRecord(slot, kept);
+                    }
+                    ++kept;
+                }
+            }
+
+            int removed = this.recordCount - kept;
+            this.recordCount = kept;
+            return removed;
+        }
+
+        private void appendLooter(int slot, long packedPos, long most, long least) {
+            this.looterLog.add(packedPos);
+            this.looterLog.add(most);
+            this.looterLog.add(least);
+            ++this.looterCounts[slot];
+        }
+
+        /**
+         * Whether the log entry at given index belongs to an existing record.
+         */
+        private boolean isLive(int index) {
+            int slot = this.slots.get(this.looterLog.getLong(index));
+            return slot != -1 && index >= this.looterStarts[slot];
+        }
+
+        private int lootTableIndex(@Nullable ResourceKey<LootTable> lootTable) {
+            return this.lootTableIndex(lootTable != null ? LootTableKeys.id(lootTable) : "");
+        }
+
+        private int lootTableIndex(String id) {
+            int index = this.lootTableIndices.getInt(id);
+            if (index == -1) {
+                index = this.lootTables.size();
+                this.lootTables.add(id);
+                this.lootTableIndices.put(id, index);
+            }
+            return index;
+        }
+
+        private Record readRecord(int slot) {
+            int offset = slot * RECORD_WIDTH;
+            long flags = this.records[offset + 3];
+            return new Record(
+                    this.records[offset],
+                    this.lootTables.get((int) (this.records[offset + 1] >>> 32)),
+                    (int) this.records[offset + 1],
+                    this.records[offset + 2],
+                    RefillClock.values()[(int) (flags & 0xFF)],
+                    (flags & CUSTOM_POLICY_FLAG) != 0,
+                    (int) (flags >>> 32),
+                    this.records[offset + 4],
+                    (flags & CUSTOM_PER_PLAYER_FLAG) != 0
+            );
+        }
+
+        /**
+         * Drops dead and duplicate log entries.
+         */
+        private void compact() {
+            LongArrayList compacted = new LongArrayList(this.looterLog.size());
+            Long2ObjectOpenHashMap<LootedPlayers> seen = new Long2ObjectOpenHashMap<>();
+            for (int i = 0; i < this.looterLog.size(); i += 3) {
+                long pos = this.looterLog.getLong(i);
+                long most = this.looterLog.getLong(i + 1);
+                long least = this.looterLog.getLong(i + 2);
+                if (this.isLive(i) && seen.computeIfAbsent(pos, p -> new LootedPlayers()).add(most, least, 0L)) {
+                    compacted.add(pos);
+                    compacted.add(most);
+                    compacted.add(least);
+                }
+            }
+            this.looterLog.clear();
+            this.looterLog.addAll(compacted);
+            this.deadLooterEntries = 0;
+
+            // No dead entries are left, every entry of a position is live
+            Arrays.fill(this.looterStarts, 0, this.recordCount, 0);
+            this.countLiveLooters();
+        }
+
+        private void countLiveLooters() {
+            Arrays.fill(this.looterCounts, 0, this.recordCount, 0);
+            for (int i = 0; i < this.looterLog.size(); i += 3) {
+                if (this.isLive(i)) {
+                    ++this.looterCounts[this.slots.get(this.looterLog.getLong(i))];
+                }
+            }
+        }
+
+        private static Segment load(CompoundTag tag) {
+            Segment segment = new Segment();
+
+            tag.getList("LootTables", Tag.TAG_STRING).forEach(table -> segment.lootTableIndex(table.getAsString()));
+
+            long[] records = tag.getLongArray("Records");
+            segment.recordCount = records.length / RECORD_WIDTH;
+            segment.records = Arrays.copyOf(records, Math.max(RECORD_WIDTH * 16, records.length));
+            for (int slot = 0; slot < segment.recordCount; ++slot) {
+                segment.slots.put(segment.records[slot * RECORD_WIDTH], slot);
+            }
+
+            segment.looterLog.addElements(0, tag.getLongArray("Looters"));
+            segment.deadLooterEntries = tag.getInt("DeadLooters");
+            int capacity = segment.records.length / RECORD_WIDTH;
+            int[] looterStarts = tag.getIntArray("LooterStarts");
+            // Missing starts mean all entries of existing records are live
+            segment.looterStarts = looterStarts.length == segment.recordCount ? Arrays.copyOf(looterStarts, capacity) : new int[capacity];
+            segment.looterCounts = new int[capacity];
+            segment.countLiveLooters();
+
+            return segment;
+        }
+
+        private CompoundTag save() {
+            // Periodic compaction, once at least half of the log is garbage
+            if (this.deadLooterEntries * 2 > this.looterLog.size() / 3) {
+                this.compact();
+            }
+
+            CompoundTag tag = new CompoundTag();
+            ListTag lootTablesTag = new ListTag();
+            this.lootTables.forEach(table -> lootTablesTag.add(StringTag.valueOf(table)));
+            tag.put("LootTables", lootTablesTag);
+
+            tag.put("Records", new LongArrayTag(Arrays.copyOf(this.records, this.recordCount * RECORD_WIDTH)));
+            tag.put("Looters", new LongArrayTag(this.looterLog.toLongArray()));
+            tag.put("LooterStarts", new IntArrayTag(Arrays.copyOf(this.looterStarts, this.recordCount)));
+            tag.putInt("DeadLooters", this.deadLooterEntries);
+
+            return tag;
+        }
+    }
+
+    /**
+     * Decoded record of a single container.
+     *
+     * @param pos packed position of the container.
+     * @param lootTable id of the saved loot table.
+     * @param refillCounter number of refills so far.
+     * @param lastRefillTime time of last refill, measured by <code>clock</code>.
+     * @param clock clock the last refill time was measured by.
+     * @param hasCustomPolicy whether container has per-chest customization.
+     * @param customMaxRefills max refills of per-chest customization.
+     * @param customMinWaitTime min wait time of per-chest customization, in seconds.
+     * @param customPerPlayerRefills per-player refills of per-chest customization.
+     */
+    public record Record(long pos, String lootTable, int refillCounter, long lastRefillTime, RefillClock clock,
+                         boolean hasCustomPolicy, int customMaxRefills, long customMinWaitTime, boolean customPerPlayerRefills) {
+
+        public BlockPos blockPos() {
+            return BlockPos.of(this.pos);
+        }
+
+        /**
+         * Gets the policy that applies to this container.
+         * @param snapshot policies to use.
+         * @return policy of the container.
+         */
+        public RefillPolicy policy(@NotNull RefillPolicies.Snapshot snapshot) {
+            RefillPolicy tablePolicy = snapshot.get(this.lootTableKey());
+            if (!this.hasCustomPolicy) {
+                return tablePolicy;
+            }
+
+            return tablePolicy.withLimits(this.customMaxRefills, this.customMinWaitTime, this.customPerPlayerRefills, snapshot.clock);
+        }
+
+        @Nullable
+        public ResourceKey<LootTable> lootTableKey() {
+            return LootTableKeys.tryGet(this.lootTable);
+        }
+
+        /**
+         * Whether the container has refills left and its cooldown has passed.
+         * @param snapshot policies to check against.
+         * @param now current time, measured by the clock of given snapshot.
+         * @return <code>true</code> if container can be refilled, otherwise <code>false</code>.
+         */
+        public boolean isReady(@NotNull RefillPolicies.Snapshot snapshot, long now) {
+            RefillPolicy policy = this.policy(snapshot);
+            if (policy.perPlayerRefills) {
+                // Players that haven't looted yet can always get a refill
+                return policy.canStillRefill(0);
+            }
+            return policy.canStillRefill(this.refillCounter) &&
+                    (this.clock != policy.clock || policy.hasCooldownPassed(this.lastRefillTime, now));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.samo_lego.chestrefill.storage;
+
+import net.minecraft.core.registries.Registries;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.level.storage.loot.LootTable;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.samo_lego.chestrefill.refill.RefillClock;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.samo_lego.chestrefill.ChestRefill.LOGGER;
+
+/**
+ * Refill policies compiled from {@link LootConfig}.
+ * <p>
+ * Each compilation produces an immutable, versioned {@link Snapshot} that is published
+ * through a single volatile reference. Containers remember the version their policy was
+ * resolved from and resolve it again once a newer snapshot is published, so config
+ * reloads apply to already loaded containers without iterating or locking them.
+ * <p>
+ * Keys of {@link LootConfig#lootModifierMap} are parsed once, when config is compiled,
+ * into {@link ResourceKey}s through {@link LootTableKeys}. As keys are interned, lookups can compare them by identity.
+ */
+public final class RefillPolicies {
+    private static final AtomicInteger VERSIONS = new AtomicInteger();
+    private static volatile Snapshot current = new Snapshot(0, new IdentityHashMap<>(), RefillPolicy.of(new LootConfig.DefaultProperties(), RefillClock.WALL_CLOCK), RefillClock.WALL_CLOCK);
+
+    private RefillPolicies() {
+    }
+
+    public static Snapshot current() {
+        return current;
+    }
+
+    /**
+     * Gets the policy for containers with given loot table from the current snapshot.
+     * @param lootTable loot table of the container.
+     * @return policy from <code>lootModifierMap</code> if table has its own entry, otherwise default policy.
+     */
+    public static RefillPolicy get(@Nullable ResourceKey<LootTable> lootTable) {
+        return current.get(lootTable);
+    }
+
+    /**
+     * Compiles the given config and publishes it as the current snapshot.
+     * @param config config to compile.
+     */
+    public static void compile(@NotNull LootConfig config) {
+        publish(build(config));
+    }
+
+    /**
+     * Makes the given snapshot current.
+     * @param snapshot snapshot to publish.
+     */
+    public static void publish(@NotNull Snapshot snapshot) {
+        current = snapshot;
+    }
+
+    /**
+     * Compiles the given config, without publishing it.
+     * Safe to call from any thread, as long as config isn't modified meanwhile.
+     * @param config config to compile.
+     * @return compiled snapshot.
+     */
+    public static Snapshot build(@NotNull LootConfig config) {
+        RefillClock clock = RefillClock.byId(config.refillClock);
+        if (clock == null) {
+            LOGGER.warn("Unknown refill clock {}, using {} instead.", config.refillClock, RefillClock.WALL_CLOCK.id);
+            clock = RefillClock.WALL_CLOCK;
+        }
+
+        Map<ResourceKey<LootTable>, RefillPolicy> policies = new IdentityHashMap<>();
+        config.lootModifierMap.forEach((id, properties) -> {
+            ResourceKey<LootTable> key = LootTableKeys.tryGet(id);
+            if (key != null && properties != null) {
+                policies.put(key, RefillPolicy.of(properties, clock));
+            }
+        });
+
+        // Entry named after the registry applies to all loot tables without their own entry
+        var registryModifiers = config.lootModifierMap.get(Registries.LOOT_TABLE.location().getPath());
+        RefillPolicy fallback = RefillPolicy.of(registryModifiers != null ? registryModifiers : config.defaultProperties, clock);
+
+        return new Snapshot(VERSIONS.incrementAndGet(), policies, fallback, clock);
+    }
+
+    /**
+     * Immutable result of a config compilation.
+     */
+    public static final class Snapshot {
+        public final int version;
+        public final RefillClock clock;
+        private final Map<ResourceKey<LootTable>, RefillPolicy> lootTablePolicies;
+        private final RefillPolicy fallbackPolicy;
+
+        private Snapshot(int version, Map<ResourceKey<LootTable>, RefillPolicy> lootTablePolicies, RefillPolicy fallbackPolicy, RefillClock clock) {
+            this.version = version;
+            this.clock = clock;
+            this.lootTablePolicies = lootTablePolicies;
+            this.fallbackPolicy = fallbackPolicy;
+        }
+
+        public RefillPolicy get(@Nullable ResourceKey<LootTable> lootTable) {
+            RefillPolicy policy = this.lootTablePolicies.get(lootTable);
+            return policy != null ? policy : this.fallbackPolicy;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package org.samo_lego.chestrefill.storage;
+
+import net.minecraft.nbt.CompoundTag;
+import org.jetbrains.annotations.NotNull;
+import org.samo_lego.chestrefill.refill.RefillClock;
+
+/**
+ * Immutable set of refill options that apply to a container.
+ * <p>
+ * Policies are shared between all containers with the same loot table,
+ * see {@link RefillPolicies}. Containers with per-chest customization get their own instance.
+ */
+public final class RefillPolicy {
+    public final boolean randomizeLootSeed;
+    /**
+     * Whether randomized seeds are derived by {@link org.samo_lego.chestrefill.refill.SeedMixer}.
+     */
+    public final boolean deterministicLootSeed;
+    public final boolean refillFull;
+    public final boolean allowRelootByDefault;
+    public final int maxRefills;
+    /**
+     * Minimum wait time between refills, in seconds.
+     */
+    public final long minWaitTime;
+    /**
+     * Max size of looter history, -1 if unlimited.
+     */
+    public final int maxLooters;
+    /**
+     * Time after which looters are forgotten, in seconds. 0 if never.
+     */
+    public final long looterExpiry;
+    /**
+     * Whether {@link #maxRefills} and {@link #minWaitTime} apply to each looter separately.
+     */
+    public final boolean perPlayerRefills;
+    /**
+     * Whether each player gets their own inventory with loot.
+     */
+    public final boolean instancedLoot;
+    /**
+     * Number of pre-generated loot layouts to keep, see {@link org.samo_lego.chestrefill.refill.LootPoolCache}.
+     * Only applies per loot table, so it's not part of per-chest customization.
+     */
+    public final int lootPoolSize;
+
+    /**
+     * Clock to measure time between refills with.
+     */
+    public final RefillClock clock;
+    /**
+     * {@link #minWaitTime} in units of {@link #clock}.
+     */
+    public final long cooldown;
+    /**
+     * {@link #looterExpiry} in units of {@link #clock}.
+     */
+    public final long looterExpiryTime;
+
+    private RefillPolicy(@NotNull LootConfig.DefaultProperties properties, @NotNull RefillClock clock) {
+        this.randomizeLootSeed = properties.randomizeLootSeed;
+        this.deterministicLootSeed = properties.deterministicLootSeed;
+        this.refillFull = properties.refillFull;
+        this.allowRelootByDefault = properties.allowRelootByDefault;
+        this.maxRefills = properties.maxRefills;
+        this.minWaitTime = properties.minWaitTime;
+        this.maxLooters = properties.maxLooters;
+        this.looterExpiry = properties.looterExpiry;
+        this.perPlayerRefills = properties.perPlayerRefills;
+        this.instancedLoot = properties.instancedLoot;
+        this.lootPoolSize = properties.lootPoolSize;
+
+        this.clock = clock;
+        this.cooldown = properties.minWaitTime * clock.unitsPerSecond;
+        this.looterExpiryTime = properties.looterExpiry * clock.unitsPerSecond;
+    }
+
+    private RefillPolicy(@NotNull RefillPolicy base, int maxRefills, long minWaitTime, boolean perPlayerRefills, @NotNull RefillClock clock) {
+        this.randomizeLootSeed = base.randomizeLootSeed;
+        this.deterministicLootSeed = base.deterministicLootSeed;
+        this.refillFull = base.refillFull;
+        this.allowRelootByDefault = base.allowRelootByDefault;
+        this.maxRefills = maxRefills;
+        this.minWaitTime = minWaitTime;
+        this.maxLooters = base.maxLooters;
+        this.looterExpiry = base.looterExpiry;
+        this.perPlayerRefills = perPlayerRefills;
+        this.instancedLoot = base.instancedLoot;
+        this.lootPoolSize = base.lootPoolSize;
+
+        this.clock = clock;
+        this.cooldown = minWaitTime * clock.unitsPerSecond;
+        this.looterExpiryTime = base.looterExpiry * clock.unitsPerSecond;
+    }
+
+    public static RefillPolicy of(@NotNull LootConfig.DefaultProperties properties, @NotNull RefillClock clock) {
+        return new RefillPolicy(properties, clock);
+    }
+
+    /**
+     * Reads per-chest customization.
+     * @param customValues the <code>CustomValues</code> tag.
+     * @param clock clock to measure time between refills with.
+     * @return policy with values from the tag.
+     */
+    public static RefillPolicy fromTag(@NotNull CompoundTag customValues, @NotNull RefillClock clock) {
+        var properties = new LootConfig.DefaultProperties();
+
+        properties.randomizeLootSeed = customValues.getBoolean("RandomizeLootSeed");
+        properties.refillFull = customValues.getBoolean("RefillNonEmpty");
+        properties.allowRelootByDefault = customValues.getBoolean("AllowReloot");
+        properties.maxRefills = customValues.getInt("MaxRefills");
+        properties.minWaitTime = customValues.getLong("MinWaitTime");
+        // Added later, keep looters forever on containers that don't have these
+        if (customValues.contains("MaxLooters")) {
+            properties.maxLooters = customValues.getInt("MaxLooters");
+        }
+        if (customValues.contains("LooterExpiry")) {
+            properties.looterExpiry = customValues.getLong("LooterExpiry");
+        }
+        properties.perPlayerRefills = customValues.getBoolean("PerPlayerRefills");
+        properties.instancedLoot = customValues.getBoolean("InstancedLoot");
+        properties.deterministicLootSeed = customValues.getBoolean("DeterministicLootSeed");
+
+        return new RefillPolicy(properties, clock);
+    }
+
+    public CompoundTag toTag() {
+        CompoundTag customValues = new CompoundTag();
+
+        customValues.putBoolean("RandomizeLootSeed", this.randomizeLootSeed);
+        customValues.putBoolean("RefillNonEmpty", this.refillFull);
+        customValues.putBoolean("AllowReloot", this.allowRelootByDefault);
+        customValues.putInt("MaxRefills", this.maxRefills);
+        customValues.putLong("MinWaitTime", this.minWaitTime);
+        if (this.maxLooters != -1) {
+            customValues.putInt("MaxLooters", this.maxLooters);
+        }
+        if (this.looterExpiry != 0) {
+            customValues.putLong("LooterExpiry", this.looterExpiry);
+        }
+        if (this.perPlayerRefills) {
+            customValues.putBoolean("PerPlayerRefills", true);
+        }
+        if (this.instancedLoot) {
+            customValues.putBoolean("InstancedLoot", true);
+        }
+        if (this.deterministicLootSeed) {
+            customValues.putBoolean("DeterministicLootSeed", true);
+        }
+
+        return customValues;
+    }
+
+    /**
+     * Gets the same policy, measured by a different clock.
+     * @param clock clock to use.
+     * @return this policy if it already uses given clock, otherwise a new one.
+     */
+    public RefillPolicy withClock(@NotNull RefillClock clock) {
+        return this.clock == clock ? this : new RefillPolicy(this, this.maxRefills, this.minWaitTime, this.perPlayerRefills, clock);
+    }
+
+    /**
+     * Gets this policy with the refill limits replaced, e.g. by per-chest customization.
+     *
+     * @param maxRefills max refills, -1 if unlimited.
+     * @param minWaitTime minimum wait time between refills, in seconds.
+     * @param perPlayerRefills whether limits apply to each looter separately.
+     * @param clock clock to measure time between refills with.
+     * @return new policy.
+     */
+    public RefillPolicy withLimits(int maxRefills, long minWaitTime, boolean perPlayerRefills, @NotNull RefillClock clock) {
+        return new RefillPolicy(this, maxRefills, minWaitTime, perPlayerRefills, clock);
+    }
+
+    /**
+     * Whether a container with the given number of refills can still be refilled.
+     * @param refillCounter number of refills done so far.
+     * @return <code>true</code> if refill limit wasn't reached yet, otherwise <code>false</code>.
+     */
+    public boolean canStillRefill(int refillCounter) {
+        return refillCounter < this.maxRefills || this.maxRefills == -1;
+    }
+
+    /**
+     * Whether cooldown has passed since the given refill time.
+     * @param lastRefillTime time of last refill, in units of {@link #clock}.
+     * @param now current time, in units of {@link #clock}.
+     * @return <code>true</code> if container can already be refilled, otherwise <code>false</code>.
+     */
+    public boolean hasCooldownPassed(long lastRefillTime, long now) {
+        long elapsed = now - lastRefillTime;
+        // Negative if the wall clock went backwards, don't lock the container until it catches up.
+        // Clocks that restart can't be used with cooldowns, see LootConfig#validate.
+        return elapsed < 0 || elapsed > this.cooldown;
+    }
+
+    /**
+     * Whether a loot at the given time has been forgotten already.
+     * @param lootTime time of the loot, in units of {@link #clock}.
+     * @param now current time, in units of {@link #clock}.
+     * @return <code>true</code> if looter expiry is enabled and has passed, otherwise <code>false</code>.
+     */
+    public boolean hasLootExpired(long lootTime, long now) {
+        return this.looterExpiryTime > 0 && now - lootTime >= this.looterExpiryTime;
+    }
+}
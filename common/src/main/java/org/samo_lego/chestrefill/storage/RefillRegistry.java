@@ -0,0 +1,117 @@
+package org.samo_lego.chestrefill.storage;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMaps;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSets;
+import net.minecraft.core.BlockPos;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.world.level.ChunkPos;
+import net.minecraft.world.level.Level;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-level index of refill states of loaded containers, keyed by packed {@link BlockPos}.
+ * <p>
+ * Containers only get a {@link RefillState} once they're looted or loaded with a <code>ChestRefill</code> tag,
+ * so the (many) never looted containers don't carry any refill data. The states of the remaining ones
+ * are registered here while their block entity is in the level, which allows looking them up
+ * without going through chunks and block entities.
+ * Positions are also indexed by chunk, to find containers near a position.
+ * <p>
+ * Only accessed from the server thread.
+ */
+public final class RefillRegistry {
+    private static final Map<ResourceKey<Level>, RefillRegistry> REGISTRIES = new HashMap<>();
+
+    private final Long2ObjectOpenHashMap<RefillState> states = new Long2ObjectOpenHashMap<>();
+    /**
+     * Packed positions of tracked states, by packed {@link ChunkPos}.
+     */
+    private final Long2ObjectOpenHashMap<LongOpenHashSet> chunks = new Long2ObjectOpenHashMap<>();
+
+    private RefillRegistry() {
+    }
+
+    public static RefillRegistry get(@NotNull ServerLevel level) {
+        return REGISTRIES.computeIfAbsent(level.dimension(), dimension -> new RefillRegistry());
+    }
+
+    /**
+     * Gets registries of all levels.
+     * @return unmodifiable view of registries, by dimension.
+     */
+    public static Map<ResourceKey<Level>, RefillRegistry> getAll() {
+        return Collections.unmodifiableMap(REGISTRIES);
+    }
+
+    /**
+     * Drops all registries, e.g. when server stops.
+     */
+    public static void clearAll() {
+        REGISTRIES.clear();
+    }
+
+    public void track(@NotNull BlockPos pos, @NotNull RefillState state) {
+        if (this.states.put(pos.asLong(), state) == null) {
+            this.chunks.computeIfAbsent(ChunkPos.asLong(pos), chunk -> new LongOpenHashSet()).add(pos.asLong());
+        }
+    }
+
+    /**
+     * Stops tracking the state at the given position,
+     * if it wasn't replaced by another container's state meanwhile.
+     * @param pos position of the container.
+     * @param state state of the container.
+     */
+    public void untrack(@NotNull BlockPos pos, @NotNull RefillState state) {
+        if (this.states.remove(pos.asLong(), state)) {
+            long chunk = ChunkPos.asLong(pos);
+            LongOpenHashSet positions = this.chunks.get(chunk);
+            if (positions != null && positions.remove(pos.asLong()) && positions.isEmpty()) {
+                this.chunks.remove(chunk);
+            }
+        }
+    }
+
+    @Nullable
+    public RefillState get(@NotNull BlockPos pos) {
+        return this.states.get(pos.asLong());
+    }
+
+    @Nullable
+    public RefillState get(long packedPos) {
+        return this.states.get(packedPos);
+    }
+
+    /**
+     * Gets positions of tracked states in the given chunk.
+     * @param chunkX x coordinate of the chunk.
+     * @param chunkZ z coordinate of the chunk.
+     * @return unmodifiable view of packed positions. Must not be used while containers are being (un)loaded.
+     */
+    public LongSet getPositionsInChunk(int chunkX, int chunkZ) {
+        LongOpenHashSet positions = this.chunks.get(ChunkPos.asLong(chunkX, chunkZ));
+        return positions != null ? LongSets.unmodifiable(positions) : LongSets.EMPTY_SET;
+    }
+
+    public int size() {
+        return this.states.size();
+    }
+
+    /**
+     * Gets tracked states.
+     * @return unmodifiable view of states by packed position. Must not be used while containers are being (un)loaded.
+     */
+    public Long2ObjectMap<RefillState> getStates() {
+        return Long2ObjectMaps.unmodifiable(this.states);
+    }
+}
@@ -0,0 +1,525 @@
+package org.samo_lego.chestrefill.storage;
+
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.LongArrayTag;
+import net.minecraft.nbt.Tag;
+import net.minecraft.resources.ResourceKey;
+import net.minecraft.world.item.ItemStack;
+import net.minecraft.world.level.storage.loot.LootTable;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.samo_lego.chestrefill.metrics.RefillMetrics;
+import org.samo_lego.chestrefill.refill.RefillClock;
+
+import java.util.UUID;
+
+/**
+ * Refill state of a single container.
+ * <p>
+ * Holds everything that is saved in the <code>ChestRefill</code> tag of the container,
+ * independent of the block entity, so it can also be read and written
+ * without a running server (e.g. by benchmarks and tools).
+ * <p>
+ * States loaded with {@link #loadLazily(CompoundTag)} keep the raw tag and only decode it
+ * once any of their values is accessed. Until then, the raw tag is saved back as is.
+ * Decoded states cache their last saved tag and reuse it until any of their values change.
+ */
+public final class RefillState {
+    public static final String TAG_NAME = "ChestRefill";
+
+    @Nullable
+    private ResourceKey<LootTable> savedLootTable;
+    private long savedLootTableSeed;
+
+    private int refillCounter;
+    private long lastRefillTime;
+    /**
+     * Clock {@link #lastRefillTime} was measured with.
+     */
+    private RefillClock lastRefillClock = RefillClock.WALL_CLOCK;
+
+    private final LootedPlayers lootedPlayers = new LootedPlayers();
+    /**
+     * Whether any looters were evicted since last {@link #pollLootersEvicted()}.
+     */
+    private boolean lootersEvicted;
+
+    /**
+     * Per-player inventories, only present if the container has instanced loot.
+     */
+    @Nullable
+    private InstancedLoot instancedLoot;
+
+    /**
+     * Loot generated ahead of the next refill, by slot. Not saved.
+     * @see org.samo_lego.chestrefill.refill.PreRefillScheduler
+     */
+    @Nullable
+    private ItemStack[] stagedLoot;
+
+    /**
+     * <code>ChestRefill</code> tag this state was loaded from, while it's not decoded yet.
+     */
+    @Nullable
+    private CompoundTag undecodedTag;
+    /**
+     * Last saved <code>ChestRefill</code> tag, reused by {@link #save(CompoundTag)} until the state changes.
+     * Never modified once cached, a change drops it and the next save encodes a new tag instead.
+     * Like the raw tag, it's shared with the saved chunk tags, which are only written to disk.
+     */
+    @Nullable
+    private CompoundTag encodedTag;
+
+    /**
+     * Policy of {@link #savedLootTable}, resolved from snapshot {@link #policyVersion}.
+     * @see RefillState#getPolicy()
+     */
+    private RefillPolicy policy;
+    private int policyVersion = -1;
+
+    /**
+     * Per-chest customization, overrides loot table policy if set.
+     * Might use an outdated clock, {@link #policy} is always up to date.
+     */
+    @Nullable
+    private RefillPolicy customPolicy;
+
+    @Nullable
+    public ResourceKey<LootTable> getSavedLootTable() {
+        this.decode();
+        return this.savedLootTable;
+    }
+
+    public long getSavedLootTableSeed() {
+        this.decode();
+        return this.savedLootTableSeed;
+    }
+
+    /**
+     * Sets the loot table to refill the container with.
+     * Policy of the new loot table is resolved on next {@link RefillState#getPolicy()} call.
+     *
+     * @param lootTable loot table to save.
+     * @param seed seed of the loot table.
+     */
+    public void setSavedLootTable(@NotNull ResourceKey<LootTable> lootTable, long seed) {
+        this.decode();
+        // Keys are interned
+        if (lootTable == this.savedLootTable && seed == this.savedLootTableSeed) {
+            return;
+        }
+        this.markDirty();
+        this.savedLootTable = lootTable;
+        this.savedLootTableSeed = seed;
+        this.policyVersion = -1;
+        this.stagedLoot = null;
+    }
+
+    public int getRefillCounter() {
+        this.decode();
+        return this.refillCounter;
+    }
+
+    /**
+     * Resets the refill counter and the refill counts of all looters,
+     * giving the container all of its refills again, also in per-player mode.
+     * @return <code>true</code> if any refills were counted, otherwise <code>false</code>.
+     */
+    public boolean resetRefillCounter() {
+        this.decode();
+        this.markDirty();
+        boolean changed = this.refillCounter != 0;
+        this.refillCounter = 0;
+        changed |= this.lootedPlayers.resetRefillCounts();
+        return changed;
+    }
+
+    public long getLastRefillTime() {
+        this.decode();
+        return this.lastRefillTime;
+    }
+
+    public RefillClock getLastRefillClock() {
+        this.decode();
+        return this.lastRefillClock;
+    }
+
+    /**
+     * Gets looters of the container.
+     * @return looter history, use {@link #clearLooters()} to modify it.
+     */
+    public LootedPlayers getLootedPlayers() {
+        this.decode();
+        return this.lootedPlayers;
+    }
+
+    /**
+     * Forgets all looters, so everyone can loot the container again.
+     */
+    public void clearLooters() {
+        this.decode();
+        this.markDirty();
+        this.lootedPlayers.clear();
+    }
+
+    @Nullable
+    public InstancedLoot getInstancedLoot() {
+        this.decode();
+        return this.instancedLoot;
+    }
+
+    /**
+     * Gets per-player inventories, creating them if needed.
+     * Changes of the inventories are tracked by {@link InstancedLoot#hasUnsavedChanges()}.
+     * @return per-player inventories.
+     */
+    public InstancedLoot getOrCreateInstancedLoot() {
+        this.decode();
+        if (this.instancedLoot == null) {
+            this.markDirty();
+            this.instancedLoot = new InstancedLoot();
+        }
+        return this.instancedLoot;
+    }
+
+    public boolean hasStagedLoot() {
+        return this.stagedLoot != null;
+    }
+
+    /**
+     * Keeps loot generated ahead of the next refill, until it's polled.
+     * @param loot items, by slot.
+     */
+    public void stageLoot(@NotNull ItemStack[] loot) {
+        this.stagedLoot = loot;
+    }
+
+    /**
+     * Takes loot generated ahead of the next refill.
+     * @return items by slot, or <code>null</code> if there's no staged loot.
+     */
+    @Nullable
+    public ItemStack[] pollStagedLoot() {
+        ItemStack[] loot = this.stagedLoot;
+        this.stagedLoot = null;
+        return loot;
+    }
+
+    @Nullable
+    public RefillPolicy getCustomPolicy() {
+        this.decode();
+        return this.customPolicy;
+    }
+
+    /**
+     * Gets the refill policy of this container.
+     * <p>
+     * Policy is cached and only resolved again
+     * after a new {@link RefillPolicies.Snapshot} has been published.
+     *
+     * @return per-chest policy if set, otherwise policy of the saved loot table.
+     */
+    public RefillPolicy getPolicy() {
+        this.decode();
+        RefillPolicies.Snapshot snapshot = RefillPolicies.current();
+        if (this.policyVersion != snapshot.version) {
+            this.policy = this.resolvePolicy(snapshot);
+            this.policyVersion = snapshot.version;
+        }
+        return this.policy;
+    }
+
+    /**
+     * Resolves the refill policy of this container from the given snapshot, without caching it.
+     * Use {@link #getPolicy()} for the current snapshot.
+     *
+     * @param snapshot policies to resolve from.
+     * @return per-chest policy if set, otherwise policy of the saved loot table.
+     */
+    public RefillPolicy resolvePolicy(@NotNull RefillPolicies.Snapshot snapshot) {
+        this.decode();
+        return this.customPolicy != null ?
+                this.customPolicy.withClock(snapshot.clock) :
+                snapshot.get(this.savedLootTable);
+    }
+
+    /**
+     * Whether this container hasn't reached max refills yet.
+     * @return <code>true</code> if container can still be refilled, <code>false</code> if refills is more than max refills.
+     */
+    public boolean canStillRefill() {
+        this.decode();
+        return this.getPolicy().canStillRefill(this.refillCounter);
+    }
+
+    /**
+     * Whether the container could be refilled for someone now, ignoring looters and permissions.
+     * In per-player mode, refill counters and cooldowns depend on the player, so it always could be.
+     * @param now current time, measured by the clock of current policy.
+     * @return <code>true</code> if container is due for a refill, otherwise <code>false</code>.
+     */
+    public boolean isDueForRefill(long now) {
+        return this.getPolicy().perPlayerRefills || (this.canStillRefill() && this.hasEnoughTimePassed(now));
+    }
+
+    /**
+     * Whether the given player can still get a refill.
+     * Uses the refill count of the player in per-player mode, otherwise the one of the container.
+     *
+     * @param player uuid of the player.
+     * @return <code>true</code> if refill limit wasn't reached yet, otherwise <code>false</code>.
+     */
+    public boolean canStillRefill(@NotNull UUID player) {
+        return this.getPolicy().canStillRefill(this.getRefillCount(player));
+    }
+
+    /**
+     * Gets the number of refills that count towards the limit of the given player.
+     * @param player uuid of the player.
+     * @return refill count of the player in per-player mode, otherwise the one of the container.
+     */
+    public int getRefillCount(@NotNull UUID player) {
+        this.decode();
+        return this.getPolicy().perPlayerRefills ? this.lootedPlayers.getRefillCount(player) : this.refillCounter;
+    }
+
+    /**
+     * Tells whether enough time has passed since previous refill.
+     * If the last refill was measured with a different clock than the current one,
+     * the times can't be compared and the cooldown is considered over.
+     * @param now current time, measured by the clock of current policy.
+     * @return <code>true</code> if container can already be refilled, otherwise <code>false</code>.
+     */
+    public boolean hasEnoughTimePassed(long now) {
+        this.decode();
+        RefillPolicy policy = this.getPolicy();
+        if (this.lastRefillClock != policy.clock) {
+            return true;
+        }
+        return policy.hasCooldownPassed(this.lastRefillTime, now);
+    }
+
+    /**
+     * Tells whether enough time has passed since previous refill for the given player.
+     * Uses the last loot of the player in per-player mode, otherwise the last refill of the container.
+     *
+     * @param player uuid of the player.
+     * @param now current time, measured by the clock of current policy.
+     * @return <code>true</code> if container can already be refilled for the player, otherwise <code>false</code>.
+     */
+    public boolean hasEnoughTimePassed(@NotNull UUID player, long now) {
+        this.decode();
+        RefillPolicy policy = this.getPolicy();
+        if (!policy.perPlayerRefills || this.lastRefillClock != policy.clock) {
+            return this.hasEnoughTimePassed(now);
+        }
+        long lootTime = this.lootedPlayers.getLootTime(player);
+        return lootTime == LootedPlayers.NOT_LOOTED || policy.hasCooldownPassed(lootTime, now);
+    }
+
+    /**
+     * Tells whether the given player has looted the container and wasn't forgotten yet.
+     * @param player uuid of the player.
+     * @param now current time, measured by the clock of current policy.
+     * @return <code>true</code> if player counts as a looter, otherwise <code>false</code>.
+     */
+    public boolean hasLooted(@NotNull UUID player, long now) {
+        this.decode();
+        long lootTime = this.lootedPlayers.getLootTime(player);
+        if (lootTime == LootedPlayers.NOT_LOOTED) {
+            return false;
+        }
+        RefillPolicy policy = this.getPolicy();
+        // Times of another clock can't be compared, keep the player until they're restamped on next loot
+        return this.lastRefillClock != policy.clock || !policy.hasLootExpired(lootTime, now);
+    }
+
+    /**
+     * Marks the container as looted by the given player.
+     * Looter history is trimmed to the limits of current policy afterwards.
+     *
+     * @param player player that looted the container.
+     * @param now current time, measured by the clock of current policy.
+     * @return <code>true</code> if the player wasn't in the looter history, otherwise <code>false</code>.
+     */
+    public boolean markLooted(@NotNull UUID player, long now) {
+        this.decode();
+        this.markDirty();
+        RefillPolicy policy = this.getPolicy();
+        if (this.lastRefillClock != policy.clock) {
+            this.lootedPlayers.restamp(now);
+        }
+        this.lastRefillTime = now;
+        this.lastRefillClock = policy.clock;
+
+        boolean added = this.lootedPlayers.add(player, now);
+        int evicted = 0;
+        if (policy.looterExpiryTime > 0) {
+            evicted += this.lootedPlayers.expire(now - policy.looterExpiryTime + 1);
+        }
+        if (policy.maxLooters != -1) {
+            evicted += this.lootedPlayers.evictOldest(policy.maxLooters);
+        }
+        this.lootersEvicted |= evicted > 0;
+        RefillMetrics.looted(this.lootedPlayers.size());
+        return added;
+    }
+
+    /**
+     * Marks the container as refilled for the given player.
+     * The refill is counted for the container, and in per-player mode also for the player.
+     * @param player player the container was refilled for.
+     * @param now current time, measured by the clock of current policy.
+     * @return <code>true</code> if the player hasn't looted this container before, otherwise <code>false</code>.
+     */
+    public boolean markRefilled(@NotNull UUID player, long now) {
+        this.decode();
+        this.markDirty();
+        ++this.refillCounter;
+        boolean added = this.markLooted(player, now);
+        if (this.getPolicy().perPlayerRefills) {
+            this.lootedPlayers.incrementRefillCount(player);
+        }
+        return added;
+    }
+
+    /**
+     * Tells whether any looters were evicted from the history since the last call, and resets the flag.
+     * @return <code>true</code> if looter history shrank, otherwise <code>false</code>.
+     */
+    public boolean pollLootersEvicted() {
+        boolean evicted = this.lootersEvicted;
+        this.lootersEvicted = false;
+        return evicted;
+    }
+
+    /**
+     * Keeps the given tag and loads it once any value of this state is needed.
+     * Most loaded containers are never opened, so this skips parsing their loot table and looters.
+     *
+     * @param refillTag the <code>ChestRefill</code> tag, must not be modified afterwards.
+     */
+    public void loadLazily(@NotNull CompoundTag refillTag) {
+        RefillMetrics.stateLoaded();
+        this.undecodedTag = refillTag;
+    }
+
+    /**
+     * Whether the state was decoded, i.e. it wasn't loaded lazily or its values have been accessed since.
+     * @return <code>false</code> if the state only holds its raw tag, otherwise <code>true</code>.
+     */
+    public boolean isDecoded() {
+        return this.undecodedTag == null;
+    }
+
+    /**
+     * Drops the cached encoding, as a value is about to change.
+     */
+    private void markDirty() {
+        this.encodedTag = null;
+    }
+
+    private void decode() {
+        if (this.undecodedTag != null) {
+            CompoundTag refillTag = this.undecodedTag;
+            this.undecodedTag = null;
+            RefillMetrics.stateDecoded();
+            this.load(refillTag);
+        }
+    }
+
+    /**
+     * Loads the refilling options from the given compound tag.
+     *
+     * @param refillTag The compound tag containing the refilling options.
+     */
+    public void load(@NotNull CompoundTag refillTag) {
+        this.undecodedTag = null;
+        this.markDirty();
+        // Has been looted already but has saved loot table
+        this.setSavedLootTable(
+                LootTableKeys.get(refillTag.getString("SavedLootTable")),
+                refillTag.getLong("SavedLootTableSeed")
+        );
+
+        this.refillCounter = refillTag.getInt("RefillCounter");
+        this.lastRefillTime = refillTag.getLong("LastRefillTime");
+        RefillClock clock = RefillClock.byId(refillTag.getString("RefillClock"));
+        this.lastRefillClock = clock != null ? clock : RefillClock.WALL_CLOCK;
+
+        if (refillTag.contains("Looters", Tag.TAG_LONG_ARRAY)) {
+            this.lootedPlayers.addAll(refillTag.getLongArray("Looters"));
+        } else if (refillTag.contains("LootedPlayers", Tag.TAG_LONG_ARRAY)) {
+            // Older formats don't have loot times, assume everyone looted at the last refill.
+            // Both get rewritten as Looters on next save.
+            this.lootedPlayers.addAllPairs(refillTag.getLongArray("LootedPlayers"), this.lastRefillTime);
+        } else {
+            ListTag lootedUUIDsTag = refillTag.getList("LootedUUIDs", Tag.TAG_STRING);
+            lootedUUIDsTag.forEach(tag -> this.lootedPlayers.add(UUID.fromString(tag.getAsString()), this.lastRefillTime));
+        }
+
+        if (refillTag.contains("Instances", Tag.TAG_LIST)) {
+            this.instancedLoot = InstancedLoot.fromTag(refillTag.getList("Instances", Tag.TAG_COMPOUND));
+        }
+
+        // Per-chest customization, otherwise the policy of the loot table is used
+        CompoundTag customValues = refillTag.getCompound("CustomValues");
+        if(!customValues.isEmpty()) {
+            this.customPolicy = RefillPolicy.fromTag(customValues, this.lastRefillClock);
+            this.policyVersion = -1;
+        }
+    }
+
+    /**
+     * Saves the refill options to the <code>ChestRefill</code> tag of the given compound.
+     * Should only be called if the state has a saved loot table.
+     *
+     * @param compoundTag The CompoundTag to save the refill options to.
+     */
+    public void save(@NotNull CompoundTag compoundTag) {
+        if (this.undecodedTag != null) {
+            // Never decoded, so nothing could have changed
+            compoundTag.put(TAG_NAME, this.undecodedTag);
+            RefillMetrics.stateSaved(false);
+            return;
+        }
+        // Instanced inventories can change without the state knowing
+        boolean instancesChanged = this.instancedLoot != null && this.instancedLoot.hasUnsavedChanges();
+        if (this.encodedTag != null && !instancesChanged) {
+            compoundTag.put(TAG_NAME, this.encodedTag);
+            RefillMetrics.stateSaved(false);
+            return;
+        }
+
+        CompoundTag refillTag = new CompoundTag();
+
+        refillTag.putString("SavedLootTable", LootTableKeys.id(this.savedLootTable));
+        refillTag.putLong("SavedLootTableSeed", this.savedLootTableSeed);
+        refillTag.putInt("RefillCounter", this.refillCounter);
+        refillTag.putLong("LastRefillTime", this.lastRefillTime);
+        if (this.lastRefillClock != RefillClock.WALL_CLOCK) {
+            refillTag.putString("RefillClock", this.lastRefillClock.id);
+        }
+
+        // (most, least, time) triples of looters, from the oldest loot to the newest one
+        if (!this.lootedPlayers.isEmpty()) {
+            refillTag.put("Looters", new LongArrayTag(this.lootedPlayers.toLongArray()));
+        }
+
+        // Per-player inventories of instanced loot
+        if (this.instancedLoot != null && !this.instancedLoot.isEmpty()) {
+            refillTag.put("Instances", this.instancedLoot.toTag());
+        }
+
+        // Allows per-chest customization
+        if (this.customPolicy != null) {
+            refillTag.put("CustomValues", this.customPolicy.toTag());
+        }
+
+        // Inventories still in memory can change again before the next save
+        this.encodedTag = this.instancedLoot != null && this.instancedLoot.hasDecoded() ? null : refillTag;
+        compoundTag.put(TAG_NAME, refillTag);
+        RefillMetrics.stateSaved(true);
+    }
+}
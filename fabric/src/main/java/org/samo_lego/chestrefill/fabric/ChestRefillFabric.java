@@ -2,6 +2,9 @@ package org.samo_lego.chestrefill.fabric;
 
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
 import net.fabricmc.loader.api.FabricLoader;
 import org.samo_lego.chestrefill.ChestRefill;
 import org.samo_lego.chestrefill.command.ChestRefillCommand;
@@ -13,5 +16,10 @@ public class ChestRefillFabric implements ModInitializer {
     public void onInitialize() {
         ChestRefill.init(new File(FabricLoader.getInstance().getConfigDir() + "/chest_refill.json"));
         CommandRegistrationCallback.EVENT.register((dispatcher, context, selection) -> ChestRefillCommand.register(dispatcher));
+        ServerPlayConnectionEvents.DISCONNECT.register((handler, server) -> ChestRefill.onPlayerLeave(handler.getPlayer().getUUID()));
+        ServerLifecycleEvents.SERVER_STARTED.register(server -> ChestRefill.onServerStarted());
+        ServerLifecycleEvents.SERVER_STOPPED.register(server -> ChestRefill.onServerStopped());
+        ServerLifecycleEvents.END_DATA_PACK_RELOAD.register((server, resourceManager, success) -> ChestRefill.onDataPackReload());
+        ServerTickEvents.END_SERVER_TICK.register(ChestRefill::onServerTick);
     }
 }
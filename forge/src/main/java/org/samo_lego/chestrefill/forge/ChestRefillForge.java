@@ -2,7 +2,13 @@ package org.samo_lego.chestrefill.forge;
 
 import com.mojang.brigadier.CommandDispatcher;
 import net.minecraft.commands.CommandSourceStack;
+import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.event.OnDatapackSyncEvent;
 import net.minecraftforge.event.RegisterCommandsEvent;
+import net.minecraftforge.event.TickEvent;
+import net.minecraftforge.event.entity.player.PlayerEvent;
+import net.minecraftforge.event.server.ServerStartedEvent;
+import net.minecraftforge.event.server.ServerStoppedEvent;
 import net.minecraftforge.eventbus.api.SubscribeEvent;
 import net.minecraftforge.fml.common.Mod;
 import net.minecraftforge.fml.loading.FMLPaths;
@@ -15,6 +21,7 @@ import java.io.File;
 public class ChestRefillForge {
     public ChestRefillForge() {
         ChestRefill.init(new File(FMLPaths.CONFIGDIR.get() + "/chest_refill.json"));
+        MinecraftForge.EVENT_BUS.register(this);
     }
 
     @SubscribeEvent
@@ -23,4 +30,34 @@ public class ChestRefillForge {
 
         ChestRefillCommand.register(dispatcher);
     }
+
+    @SubscribeEvent
+    public void onPlayerLeave(PlayerEvent.PlayerLoggedOutEvent event) {
+        ChestRefill.onPlayerLeave(event.getEntity().getUUID());
+    }
+
+    @SubscribeEvent
+    public void onServerStarted(ServerStartedEvent event) {
+        ChestRefill.onServerStarted();
+    }
+
+    @SubscribeEvent
+    public void onServerStopped(ServerStoppedEvent event) {
+        ChestRefill.onServerStopped();
+    }
+
+    @SubscribeEvent
+    public void onServerTick(TickEvent.ServerTickEvent event) {
+        if (event.phase == TickEvent.Phase.END) {
+            ChestRefill.onServerTick(event.getServer());
+        }
+    }
+
+    @SubscribeEvent
+    public void onDataPackReload(OnDatapackSyncEvent event) {
+        // Also fired for each joining player, without a player only after /reload
+        if (event.getPlayer() == null) {
+            ChestRefill.onDataPackReload();
+        }
+    }
 }